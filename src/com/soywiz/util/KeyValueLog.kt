@@ -0,0 +1,283 @@
+package com.soywiz.util
+
+import java.io.Closeable
+import java.io.EOFException
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+
+/**
+ * Append-only key/value file with an in-memory offset index.
+ *
+ * Each put appends a record `[magic][keySize][valueSize][crc32][key][value]`; the newest record
+ * for a key wins and a record with valueSize -1 is a tombstone. Opening the log only walks the
+ * record headers, values are read back on demand with positional reads and checked against
+ * their CRC. A torn record left at the end of the file by a crash is cut off when opening, and a
+ * damaged record in the middle is skipped up to the next one whose CRC matches.
+ * [compact] rewrites the live records into a side file and atomically replaces the log.
+ */
+class KeyValueLog(val file: File) : Closeable {
+	companion object {
+		private val MAGIC = 0x564F4B56 // VOKV
+		private val HEADER_SIZE = 16
+		private val TOMBSTONE = -1
+		private val MAX_KEY_SIZE = 0x400
+		private val MIN_GARBAGE_TO_COMPACT = 1024 * 1024L
+	}
+
+	private class Slot(val offset: Long, val keySize: Int, val valueSize: Int) {
+		val recordSize: Long get() = (HEADER_SIZE + keySize + Math.max(valueSize, 0)).toLong()
+	}
+
+	private val index = LinkedHashMap<String, Slot>()
+	private var channel = open()
+	private var end = 0L
+	private var garbage = 0L
+
+	init {
+		load()
+	}
+
+	val keys: List<String> @Synchronized get() = index.keys.toList()
+
+	val size: Int @Synchronized get() = index.size
+
+	@Synchronized operator fun contains(key: String): Boolean = key in index
+
+	@Synchronized operator fun get(key: String): ByteArray? {
+		val slot = index[key] ?: return null
+		val record = readFully(slot.offset, slot.recordSize.toInt())
+		if (!checksumMatches(record)) {
+			println("Corrupted record '$key' in $file, ignoring it")
+			return null
+		}
+		return record.copyOfRange(HEADER_SIZE + slot.keySize, record.size)
+	}
+
+	@Synchronized operator fun set(key: String, value: ByteArray) {
+		append(key, value)
+	}
+
+	/**
+	 * Stores all [values] with a single write, for callers that produce records in batches.
+	 */
+	@Synchronized fun putAll(values: Map<String, ByteArray>) {
+		appendAll(values.map { it.key to it.value })
+	}
+
+	@Synchronized fun remove(key: String) {
+		if (key in index) append(key, null)
+	}
+
+	@Synchronized fun clear() {
+		channel.truncate(0L)
+		index.clear()
+		end = 0L
+		garbage = 0L
+	}
+
+	/**
+	 * Forces appended records to disk. Records are not synced one by one so a scan of a big
+	 * library does not pay an fsync per game; a crash before this just loses the newest records.
+	 */
+	@Synchronized fun sync() {
+		channel.force(false)
+	}
+
+	@Synchronized fun compactIfNeeded() {
+		if (garbage >= MIN_GARBAGE_TO_COMPACT && garbage > end - garbage) compact()
+	}
+
+	@Synchronized fun compact() {
+		val tempFile = File(file.path + ".compact")
+		val newIndex = LinkedHashMap<String, Slot>()
+		var newEnd = 0L
+		FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).use { out ->
+			for ((key, slot) in index) {
+				var copied = 0L
+				while (copied < slot.recordSize) {
+					copied += channel.transferTo(slot.offset + copied, slot.recordSize - copied, out)
+				}
+				newIndex[key] = Slot(newEnd, slot.keySize, slot.valueSize)
+				newEnd += slot.recordSize
+			}
+			out.force(true)
+		}
+		channel.close()
+		try {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+		} catch (e: AtomicMoveNotSupportedException) {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+		} finally {
+			channel = open()
+		}
+		index.clear()
+		index.putAll(newIndex)
+		end = newEnd
+		garbage = 0L
+	}
+
+	@Synchronized override fun close() {
+		channel.close()
+	}
+
+	private fun open(): FileChannel {
+		file.parentFile?.mkdirs()
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+	}
+
+	private fun load() {
+		val fileSize = channel.size()
+		var pos = 0L
+		var last: Slot? = null
+		var lastKey = ""
+		var lastPrevious: Slot? = null
+		while (pos + HEADER_SIZE <= fileSize) {
+			val slot = readSlot(pos, fileSize)
+			if (slot == null) {
+				// A damaged header in the middle of the file must not take the records after it along
+				val next = findNextRecord(pos + 1, fileSize) ?: break
+				println("Skipping ${next - pos} corrupted bytes at $pos in $file")
+				garbage += next - pos
+				pos = next
+				continue
+			}
+			val key = String(readFully(pos + HEADER_SIZE, slot.keySize), Charsets.UTF_8)
+
+			val previous = index.remove(key)
+			if (previous != null) garbage += previous.recordSize
+			if (slot.valueSize == TOMBSTONE) {
+				garbage += slot.recordSize
+			} else {
+				index[key] = slot
+			}
+			last = slot
+			lastKey = key
+			lastPrevious = previous
+			pos += slot.recordSize
+		}
+
+		// Only the last record can have been torn by a crash, the rest are checked lazily on get
+		if (last != null && !isValid(last)) {
+			pos = last.offset
+			if (last.valueSize == TOMBSTONE) garbage -= last.recordSize else index.remove(lastKey)
+			// The torn record never replaced the one before it
+			if (lastPrevious != null) {
+				index[lastKey] = lastPrevious
+				garbage -= lastPrevious.recordSize
+			}
+		}
+
+		if (pos < fileSize) {
+			println("Discarding ${fileSize - pos} trailing bytes from $file")
+			channel.truncate(pos)
+		}
+		end = pos
+	}
+
+	// The record starting at [pos] if its header looks right and it fits in the file
+	private fun readSlot(pos: Long, fileSize: Long): Slot? {
+		val header = ByteBuffer.allocate(HEADER_SIZE)
+		readFully(header, pos)
+		header.flip()
+		if (header.int != MAGIC) return null
+		val keySize = header.int
+		val valueSize = header.int
+		if (keySize !in 0..MAX_KEY_SIZE || valueSize < TOMBSTONE) return null
+		val slot = Slot(pos, keySize, valueSize)
+		return if (pos + slot.recordSize <= fileSize) slot else null
+	}
+
+	// Offset of the first record at or after [from] whose checksum matches, null if there is none
+	private fun findNextRecord(from: Long, fileSize: Long): Long? {
+		val chunk = ByteBuffer.allocate(64 * 1024)
+		var base = from
+		while (base + HEADER_SIZE <= fileSize) {
+			val count = Math.min(chunk.capacity().toLong(), fileSize - base).toInt()
+			chunk.clear()
+			chunk.limit(count)
+			readFully(chunk, base)
+			for (n in 0..count - 4) {
+				if (chunk.getInt(n) != MAGIC) continue
+				val slot = readSlot(base + n, fileSize)
+				if (slot != null && isValid(slot)) return slot.offset
+			}
+			// Chunks overlap so a magic split between two of them is still found
+			base += count - 3
+		}
+		return null
+	}
+
+	private fun isValid(slot: Slot): Boolean = checksumMatches(readFully(slot.offset, slot.recordSize.toInt()))
+
+	private fun checksumMatches(record: ByteArray): Boolean {
+		val crc = CRC32()
+		crc.update(record, HEADER_SIZE, record.size - HEADER_SIZE)
+		return crc.value.toInt() == ByteBuffer.wrap(record, 12, 4).int
+	}
+
+	private fun append(key: String, value: ByteArray?) {
+		appendAll(listOf(key to value))
+	}
+
+	private fun appendAll(records: List<Pair<String, ByteArray?>>) {
+		val keys = records.map { it.first.toByteArray(Charsets.UTF_8) }
+		for ((n, keyBytes) in keys.withIndex()) {
+			if (keyBytes.size > MAX_KEY_SIZE) throw IllegalArgumentException("Key too long: ${records[n].first}")
+		}
+		val slots = arrayListOf<Slot>()
+		var offset = end
+		for ((n, record) in records.withIndex()) {
+			val slot = Slot(offset, keys[n].size, record.second?.size ?: TOMBSTONE)
+			slots += slot
+			offset += slot.recordSize
+		}
+
+		val buffer = ByteBuffer.allocate((offset - end).toInt())
+		for ((n, record) in records.withIndex()) {
+			val keyBytes = keys[n]
+			val value = record.second
+			val crc = CRC32()
+			crc.update(keyBytes)
+			if (value != null) crc.update(value)
+			buffer.putInt(MAGIC).putInt(slots[n].keySize).putInt(slots[n].valueSize).putInt(crc.value.toInt())
+			buffer.put(keyBytes)
+			if (value != null) buffer.put(value)
+		}
+		buffer.flip()
+		var pos = end
+		while (buffer.hasRemaining()) pos += channel.write(buffer, pos)
+
+		for ((n, record) in records.withIndex()) {
+			val slot = slots[n]
+			val previous = index.remove(record.first)
+			if (previous != null) garbage += previous.recordSize
+			if (record.second != null) {
+				index[record.first] = slot
+			} else {
+				garbage += slot.recordSize
+			}
+		}
+		end = pos
+	}
+
+	private fun readFully(offset: Long, size: Int): ByteArray {
+		val buffer = ByteBuffer.allocate(size)
+		readFully(buffer, offset)
+		return buffer.array()
+	}
+
+	private fun readFully(buffer: ByteBuffer, offset: Long) {
+		var pos = offset
+		while (buffer.hasRemaining()) {
+			val read = channel.read(buffer, pos)
+			if (read < 0) throw EOFException("Unexpected end of $file")
+			pos += read
+		}
+	}
+}
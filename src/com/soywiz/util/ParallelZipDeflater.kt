@@ -0,0 +1,132 @@
+package com.soywiz.util
+
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.InputStream
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+
+/**
+ * Adds deflated entries to a [RawZipWriter] using several threads, the way pigz does.
+ *
+ * Input is cut into blocks of [blockSize] bytes that are deflated independently on [executor].
+ * Every block but the last of an entry ends with a sync flush so the pieces concatenate into a
+ * single valid deflate stream, and each block is primed with the last 32 KiB of the previous one
+ * so the ratio stays close to single-threaded deflate. The CRC is computed while reading and
+ * blocks are written strictly in order; at most [maxBlocksInFlight] blocks are held in memory,
+ * including blocks of the following entries, so many small files are compressed in parallel too.
+ */
+class ParallelZipDeflater(
+	val writer: RawZipWriter,
+	val executor: ExecutorService,
+	val level: Int = Deflater.DEFAULT_COMPRESSION,
+	val blockSize: Int = 1024 * 1024,
+	val maxBlocksInFlight: Int = 32
+) : Closeable {
+	companion object {
+		private val DICTIONARY_SIZE = 32 * 1024
+	}
+
+	// [expectedSize] is the size the caller announced, -1 if unknown
+	private class EntryState(val name: String, val dosTime: Int, val expectedSize: Long) {
+		val crc = CRC32()
+		var size = 0L
+	}
+
+	private class Block(val entry: EntryState, val first: Boolean, val last: Boolean, val data: Future<ByteArray>)
+
+	private val pending = ArrayDeque<Block>()
+
+	/**
+	 * Reads [input] to the end and queues it as entry [name]. [onRead] is called with the number
+	 * of bytes read for every block. The entry may still be being written when this returns.
+	 * [size] is how much [input] holds when known, entries of 4 GB or more need it.
+	 */
+	fun addEntry(name: String, input: InputStream, dosTime: Int = RawZipWriter.dosTime(System.currentTimeMillis()), size: Long = -1L, onRead: (Int) -> Unit = { }) {
+		val entry = EntryState(name, dosTime, size)
+		var dictionary: ByteArray? = null
+		var buffer = readBlock(input)
+		var first = true
+		while (true) {
+			val next = if (buffer.size == blockSize) readBlock(input) else null
+			val last = next == null || next.isEmpty()
+			entry.crc.update(buffer)
+			entry.size += buffer.size
+			onRead(buffer.size)
+			submit(Block(entry, first, last, deflate(buffer, dictionary, last)))
+			if (last) break
+			dictionary = Arrays.copyOfRange(buffer, Math.max(0, buffer.size - DICTIONARY_SIZE), buffer.size)
+			buffer = next!!
+			first = false
+		}
+	}
+
+	/**
+	 * Writes everything still queued. The [writer] is left open.
+	 */
+	fun flush() {
+		while (pending.isNotEmpty()) writeNext()
+	}
+
+	/**
+	 * Drops whatever was not [flush]ed, so closing after a failure does not write half an entry.
+	 */
+	override fun close() {
+		for (block in pending) block.data.cancel(false)
+		pending.clear()
+	}
+
+	private fun submit(block: Block) {
+		while (pending.size >= maxBlocksInFlight) writeNext()
+		pending += block
+	}
+
+	private fun writeNext() {
+		val block = pending.removeFirst()
+		val data = try {
+			block.data.get()
+		} catch (e: ExecutionException) {
+			throw e.cause ?: e
+		}
+		// An entry that fits in one block is already read whole
+		if (block.first) writer.startCompressedEntry(block.entry.name, block.entry.dosTime, if (block.last) block.entry.size else block.entry.expectedSize)
+		writer.writeCompressed(data)
+		if (block.last) writer.closeCompressedEntry(block.entry.crc.value.toInt(), block.entry.size)
+	}
+
+	private fun readBlock(input: InputStream): ByteArray {
+		val buffer = ByteArray(blockSize)
+		var length = 0
+		while (length < blockSize) {
+			val read = input.read(buffer, length, blockSize - length)
+			if (read < 0) break
+			length += read
+		}
+		return if (length == blockSize) buffer else buffer.copyOf(length)
+	}
+
+	private fun deflate(data: ByteArray, dictionary: ByteArray?, last: Boolean): Future<ByteArray> = executor.submit(Callable<ByteArray> {
+		val deflater = Deflater(level, true)
+		try {
+			if (dictionary != null) deflater.setDictionary(dictionary)
+			deflater.setInput(data)
+			if (last) deflater.finish()
+			val out = ByteArrayOutputStream(data.size / 2 + 64)
+			val temp = ByteArray(0x10000)
+			while (true) {
+				val length = deflater.deflate(temp, 0, temp.size, if (last) Deflater.NO_FLUSH else Deflater.SYNC_FLUSH)
+				out.write(temp, 0, length)
+				// A sync flush is complete once it does not fill the output buffer
+				if (if (last) deflater.finished() else length < temp.size) break
+			}
+			out.toByteArray()
+		} finally {
+			deflater.end()
+		}
+	})
+}
@@ -0,0 +1,422 @@
+package com.soywiz.util
+
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.*
+import java.util.zip.*
+
+/**
+ * Zip reader that exposes where each entry's compressed data lives, so entries can be copied
+ * into another archive without inflating and deflating them again.
+ *
+ * All reads are positional on a single channel, so entries can be read from several threads.
+ * Zip64 archives are supported.
+ */
+class RawZipReader(val file: File) : Closeable {
+	companion object {
+		private val EOCD_SIGNATURE = 0x06054b50
+		private val EOCD64_LOCATOR_SIGNATURE = 0x07064b50
+		private val EOCD64_SIGNATURE = 0x06064b50
+		private val CENTRAL_SIGNATURE = 0x02014b50
+		private val LOCAL_SIGNATURE = 0x04034b50
+		private val EOCD_SIZE = 22
+		private val LOCAL_HEADER_SIZE = 30
+	}
+
+	class Entry(
+		val name: String,
+		val flags: Int,
+		val method: Int,
+		val dosTime: Int,
+		val crc: Int,
+		val compressedSize: Long,
+		val size: Long,
+		val localHeaderOffset: Long
+	) {
+		val isDirectory: Boolean get() = name.endsWith("/")
+		internal var dataOffset = -1L
+
+		override fun toString(): String = name
+	}
+
+	private val channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)
+	val entries: List<Entry> = readCentralDirectory()
+	private val entriesByName = entries.associateBy { it.name }
+
+	operator fun get(name: String): Entry? = entriesByName[name]
+
+	/**
+	 * Offset of the first byte of [entry]'s compressed data, read from its local header once.
+	 */
+	fun dataOffset(entry: Entry): Long {
+		if (entry.dataOffset < 0L) {
+			val header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE)
+			if (header.getInt(0) != LOCAL_SIGNATURE) throw ZipException("Invalid local header for ${entry.name} in $file")
+			val nameSize = header.getShort(26).toInt() and 0xFFFF
+			val extraSize = header.getShort(28).toInt() and 0xFFFF
+			entry.dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameSize + extraSize
+		}
+		return entry.dataOffset
+	}
+
+	/**
+	 * The data of [entry] as stored in the archive, without decompressing it.
+	 */
+	fun openRaw(entry: Entry): InputStream = ChannelInputStream(channel, dataOffset(entry), entry.compressedSize)
+
+	/**
+	 * The uncompressed data of [entry].
+	 */
+	fun open(entry: Entry): InputStream = when (entry.method) {
+		ZipEntry.STORED -> openRaw(entry)
+		ZipEntry.DEFLATED -> {
+			val inflater = Inflater(true)
+			// A nowrap inflater may need one extra byte past the end of the data
+			val input = SequenceInputStream(openRaw(entry), ByteArrayInputStream(byteArrayOf(0)))
+			object : InflaterInputStream(input, inflater, 0x10000) {
+				override fun close() {
+					super.close()
+					inflater.end()
+				}
+			}
+		}
+		else -> throw ZipException("Unsupported compression method ${entry.method} for ${entry.name}")
+	}
+
+	override fun close() {
+		channel.close()
+	}
+
+	private fun readCentralDirectory(): List<Entry> {
+		val fileSize = channel.size()
+		val tailSize = Math.min(fileSize, (0xFFFF + EOCD_SIZE).toLong()).toInt()
+		val tail = read(fileSize - tailSize, tailSize)
+		var eocd = tailSize - EOCD_SIZE
+		while (eocd >= 0 && tail.getInt(eocd) != EOCD_SIGNATURE) eocd--
+		if (eocd < 0) throw ZipException("Not a zip file: $file")
+
+		var count = (tail.getShort(eocd + 10).toInt() and 0xFFFF).toLong()
+		var directorySize = tail.getInt(eocd + 12).toLong() and 0xFFFFFFFFL
+		var directoryOffset = tail.getInt(eocd + 16).toLong() and 0xFFFFFFFFL
+
+		val locator = eocd - 20
+		if (locator >= 0 && tail.getInt(locator) == EOCD64_LOCATOR_SIGNATURE) {
+			val eocd64 = read(tail.getLong(locator + 8), 56)
+			if (eocd64.getInt(0) != EOCD64_SIGNATURE) throw ZipException("Invalid zip64 end of central directory in $file")
+			count = eocd64.getLong(32)
+			directorySize = eocd64.getLong(40)
+			directoryOffset = eocd64.getLong(48)
+		}
+
+		val directory = read(directoryOffset, directorySize.toInt())
+		val out = ArrayList<Entry>(count.toInt())
+		var pos = 0
+		for (n in 0 until count) {
+			if (directory.getInt(pos) != CENTRAL_SIGNATURE) throw ZipException("Invalid central directory in $file")
+			val flags = directory.getShort(pos + 8).toInt() and 0xFFFF
+			val method = directory.getShort(pos + 10).toInt() and 0xFFFF
+			val dosTime = directory.getInt(pos + 12)
+			val crc = directory.getInt(pos + 16)
+			var compressedSize = directory.getInt(pos + 20).toLong() and 0xFFFFFFFFL
+			var size = directory.getInt(pos + 24).toLong() and 0xFFFFFFFFL
+			val nameSize = directory.getShort(pos + 28).toInt() and 0xFFFF
+			val extraSize = directory.getShort(pos + 30).toInt() and 0xFFFF
+			val commentSize = directory.getShort(pos + 32).toInt() and 0xFFFF
+			var localHeaderOffset = directory.getInt(pos + 42).toLong() and 0xFFFFFFFFL
+			val nameBytes = ByteArray(nameSize)
+			directory.position(pos + 46)
+			directory.get(nameBytes)
+
+			// Zip64 extra field, only the fields that overflowed are present and in this order
+			var extra = pos + 46 + nameSize
+			val extraEnd = extra + extraSize
+			while (extra + 4 <= extraEnd) {
+				val id = directory.getShort(extra).toInt() and 0xFFFF
+				val length = directory.getShort(extra + 2).toInt() and 0xFFFF
+				if (id == 0x0001) {
+					var field = extra + 4
+					if (size == 0xFFFFFFFFL) size = directory.getLong(field).also { field += 8 }
+					if (compressedSize == 0xFFFFFFFFL) compressedSize = directory.getLong(field).also { field += 8 }
+					if (localHeaderOffset == 0xFFFFFFFFL) localHeaderOffset = directory.getLong(field).also { field += 8 }
+				}
+				extra += 4 + length
+			}
+
+			out += Entry(String(nameBytes, Charsets.UTF_8), flags, method, dosTime, crc, compressedSize, size, localHeaderOffset)
+			pos += 46 + nameSize + extraSize + commentSize
+		}
+		return out
+	}
+
+	private fun read(offset: Long, size: Int): ByteBuffer {
+		val buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+		var pos = offset
+		while (buffer.hasRemaining()) {
+			val read = channel.read(buffer, pos)
+			if (read < 0) throw EOFException("Unexpected end of $file")
+			pos += read
+		}
+		buffer.flip()
+		return buffer
+	}
+
+	private class ChannelInputStream(val channel: FileChannel, var position: Long, var remaining: Long) : InputStream() {
+		override fun read(): Int {
+			val one = ByteArray(1)
+			return if (read(one, 0, 1) <= 0) -1 else one[0].toInt() and 0xFF
+		}
+
+		override fun read(b: ByteArray, off: Int, len: Int): Int {
+			if (remaining <= 0L) return -1
+			val read = channel.read(ByteBuffer.wrap(b, off, Math.min(len.toLong(), remaining).toInt()), position)
+			if (read < 0) throw EOFException("Unexpected end of zip data")
+			position += read
+			remaining -= read
+			return read
+		}
+
+		override fun available(): Int = Math.min(remaining, Int.MAX_VALUE.toLong()).toInt()
+	}
+}
+
+/**
+ * Zip writer that can copy already compressed entries as they are, next to entries deflated on
+ * the fly. Writes zip64 records only when an archive or entry needs them.
+ */
+class RawZipWriter(output: OutputStream) : Closeable {
+	companion object {
+		private val ZIP64_LIMIT = 0xFFFFFFFFL
+		private val UTF8_FLAG = 0x0800
+		private val DESCRIPTOR_FLAG = 0x0008
+
+		// Biggest raw deflate stream for [size] input bytes, as zlib's deflateBound works it out
+		private fun maxDeflatedSize(size: Long): Long = size + (size shr 12) + (size shr 14) + (size shr 25) + 13
+
+		fun dosTime(millis: Long): Int {
+			val c = Calendar.getInstance()
+			c.timeInMillis = millis
+			val year = c.get(Calendar.YEAR)
+			if (year < 1980) return (1 shl 21) or (1 shl 16)
+			return ((year - 1980) shl 25) or ((c.get(Calendar.MONTH) + 1) shl 21) or (c.get(Calendar.DAY_OF_MONTH) shl 16) or
+				(c.get(Calendar.HOUR_OF_DAY) shl 11) or (c.get(Calendar.MINUTE) shl 5) or (c.get(Calendar.SECOND) shr 1)
+		}
+	}
+
+	private class CentralRecord(val name: ByteArray, val flags: Int, val method: Int, val dosTime: Int, val crc: Int, val compressedSize: Long, val size: Long, val offset: Long)
+
+	private val out = object : FilterOutputStream(output) {
+		var written = 0L
+
+		override fun write(b: Int) {
+			out.write(b)
+			written++
+		}
+
+		override fun write(b: ByteArray, off: Int, len: Int) {
+			out.write(b, off, len)
+			written += len
+		}
+	}
+	private val records = arrayListOf<CentralRecord>()
+	private val scratch = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN)
+	private class OpenEntry(val record: CentralRecord, val dataStart: Long, val zip64: Boolean)
+
+	private var openEntry: OpenEntry? = null
+	private var finished = false
+
+	val bytesWritten: Long get() = out.written
+
+	/**
+	 * Stores [entry] from [reader] without recompressing it.
+	 */
+	fun copyRaw(reader: RawZipReader, entry: RawZipReader.Entry, name: String = entry.name) {
+		reader.openRaw(entry).use { input ->
+			writeRaw(name, entry.method, entry.crc, entry.compressedSize, entry.size, input, entry.dosTime)
+		}
+	}
+
+	/**
+	 * Stores [compressedSize] bytes of already compressed data from [input] as an entry with the
+	 * given [method], [crc] and uncompressed [size].
+	 */
+	fun writeRaw(name: String, method: Int, crc: Int, compressedSize: Long, size: Long, input: InputStream, dosTime: Int = dosTime(System.currentTimeMillis())) {
+		checkNoOpenEntry()
+		val record = CentralRecord(name.toByteArray(Charsets.UTF_8), UTF8_FLAG, method, dosTime, crc, compressedSize, size, out.written)
+		val zip64 = compressedSize >= ZIP64_LIMIT || size >= ZIP64_LIMIT
+		writeLocalHeader(record, zip64)
+		val buffer = ByteArray(0x10000)
+		var remaining = compressedSize
+		while (remaining > 0L) {
+			val read = input.read(buffer, 0, Math.min(remaining, buffer.size.toLong()).toInt())
+			if (read < 0) throw EOFException("Unexpected end of data for $name")
+			out.write(buffer, 0, read)
+			remaining -= read
+		}
+		records += record
+	}
+
+	/**
+	 * Starts a new entry deflated with [level]. The returned stream has to be closed before the
+	 * next entry is added; sizes and CRC go into a data descriptor after the data. [size] is the
+	 * uncompressed size when known, see [startCompressedEntry].
+	 */
+	fun putNextEntry(name: String, level: Int = Deflater.DEFAULT_COMPRESSION, dosTime: Int = dosTime(System.currentTimeMillis()), size: Long = -1L): OutputStream {
+		startCompressedEntry(name, dosTime, size)
+		val deflater = Deflater(level, true)
+		val crc = CRC32()
+		var size = 0L
+		return object : DeflaterOutputStream(NonClosingOutputStream(out), deflater, 0x10000) {
+			var closed = false
+
+			override fun write(b: ByteArray, off: Int, len: Int) {
+				crc.update(b, off, len)
+				size += len
+				super.write(b, off, len)
+			}
+
+			override fun write(b: Int) {
+				write(byteArrayOf(b.toByte()), 0, 1)
+			}
+
+			override fun close() {
+				if (closed) return
+				closed = true
+				finish()
+				deflater.end()
+				closeCompressedEntry(crc.value.toInt(), size)
+			}
+		}
+	}
+
+	/**
+	 * Starts an entry whose raw deflate data is produced by the caller and passed to
+	 * [writeCompressed], for compressing outside of the writer. [closeCompressedEntry] ends it.
+	 *
+	 * [size] is the uncompressed size, -1 when unknown. The local header has to announce zip64
+	 * before the data for the 8 byte sizes of the data descriptor to be valid, so an entry whose
+	 * size or deflated size may reach 4 GB gets a zip64 extra with placeholder sizes. An entry
+	 * started without a size can't grow past 4 GB.
+	 */
+	fun startCompressedEntry(name: String, dosTime: Int = dosTime(System.currentTimeMillis()), size: Long = -1L) {
+		checkNoOpenEntry()
+		val record = CentralRecord(name.toByteArray(Charsets.UTF_8), UTF8_FLAG or DESCRIPTOR_FLAG, ZipEntry.DEFLATED, dosTime, 0, 0L, 0L, out.written)
+		val zip64 = size >= 0L && maxDeflatedSize(size) >= ZIP64_LIMIT
+		writeLocalHeader(record, zip64)
+		openEntry = OpenEntry(record, out.written, zip64)
+	}
+
+	fun writeCompressed(data: ByteArray, offset: Int = 0, length: Int = data.size) {
+		if (openEntry == null) throw IllegalStateException("No open entry")
+		out.write(data, offset, length)
+	}
+
+	fun closeCompressedEntry(crc: Int, size: Long) {
+		val entry = openEntry ?: throw IllegalStateException("No open entry")
+		val compressedSize = out.written - entry.dataStart
+		if (!entry.zip64 && (compressedSize >= ZIP64_LIMIT || size >= ZIP64_LIMIT)) {
+			throw ZipException("${String(entry.record.name, Charsets.UTF_8)} reached 4 GB but its local header is not zip64, its size has to be given when starting it")
+		}
+		writeDataDescriptor(crc, compressedSize, size, entry.zip64)
+		records += CentralRecord(entry.record.name, entry.record.flags, entry.record.method, entry.record.dosTime, crc, compressedSize, size, entry.record.offset)
+		openEntry = null
+	}
+
+	/**
+	 * Writes the central directory. The underlying stream is left open.
+	 */
+	fun finish() {
+		if (finished) return
+		checkNoOpenEntry()
+		finished = true
+		val directoryOffset = out.written
+		for (record in records) writeCentralRecord(record)
+		val directorySize = out.written - directoryOffset
+		val needsZip64 = records.size >= 0xFFFF || directoryOffset >= ZIP64_LIMIT || directorySize >= ZIP64_LIMIT
+		if (needsZip64) {
+			val eocd64Offset = out.written
+			put { it.putInt(0x06064b50).putLong(44L).putShort(45).putShort(45).putInt(0).putInt(0) }
+			put { it.putLong(records.size.toLong()).putLong(records.size.toLong()).putLong(directorySize).putLong(directoryOffset) }
+			put { it.putInt(0x07064b50).putInt(0).putLong(eocd64Offset).putInt(1) }
+		}
+		put {
+			it.putInt(0x06054b50).putShort(0).putShort(0)
+			it.putShort(Math.min(records.size, 0xFFFF).toShort()).putShort(Math.min(records.size, 0xFFFF).toShort())
+			it.putInt(Math.min(directorySize, ZIP64_LIMIT).toInt()).putInt(Math.min(directoryOffset, ZIP64_LIMIT).toInt())
+			it.putShort(0)
+		}
+		out.flush()
+	}
+
+	override fun close() {
+		finish()
+		out.close()
+	}
+
+	private fun checkNoOpenEntry() {
+		if (openEntry != null) throw IllegalStateException("Previous entry was not closed")
+		if (finished) throw IllegalStateException("Zip already finished")
+	}
+
+	private fun writeLocalHeader(record: CentralRecord, zip64: Boolean) {
+		put {
+			it.putInt(0x04034b50).putShort((if (zip64) 45 else 20).toShort()).putShort(record.flags.toShort()).putShort(record.method.toShort())
+			it.putInt(record.dosTime).putInt(record.crc)
+			it.putInt(if (zip64) -1 else record.compressedSize.toInt()).putInt(if (zip64) -1 else record.size.toInt())
+			it.putShort(record.name.size.toShort()).putShort((if (zip64) 20 else 0).toShort())
+		}
+		out.write(record.name)
+		if (zip64) put { it.putShort(0x0001).putShort(16).putLong(record.size).putLong(record.compressedSize) }
+	}
+
+	// Sizes take 8 bytes exactly when the local header has a zip64 extra
+	private fun writeDataDescriptor(crc: Int, compressedSize: Long, size: Long, zip64: Boolean) {
+		if (zip64) {
+			put { it.putInt(0x08074b50).putInt(crc).putLong(compressedSize).putLong(size) }
+		} else {
+			put { it.putInt(0x08074b50).putInt(crc).putInt(compressedSize.toInt()).putInt(size.toInt()) }
+		}
+	}
+
+	private fun writeCentralRecord(record: CentralRecord) {
+		val sizeOverflows = record.size >= ZIP64_LIMIT
+		val compressedSizeOverflows = record.compressedSize >= ZIP64_LIMIT
+		val offsetOverflows = record.offset >= ZIP64_LIMIT
+		val extraSize = (if (sizeOverflows) 8 else 0) + (if (compressedSizeOverflows) 8 else 0) + (if (offsetOverflows) 8 else 0)
+		val version = if (extraSize > 0) 45 else 20
+		put {
+			it.putInt(0x02014b50).putShort(version.toShort()).putShort(version.toShort()).putShort(record.flags.toShort()).putShort(record.method.toShort())
+			it.putInt(record.dosTime).putInt(record.crc)
+			it.putInt(if (compressedSizeOverflows) -1 else record.compressedSize.toInt()).putInt(if (sizeOverflows) -1 else record.size.toInt())
+			it.putShort(record.name.size.toShort()).putShort((if (extraSize > 0) extraSize + 4 else 0).toShort()).putShort(0)
+			it.putShort(0).putShort(0).putInt(0).putInt(if (offsetOverflows) -1 else record.offset.toInt())
+		}
+		out.write(record.name)
+		if (extraSize > 0) {
+			put {
+				it.putShort(0x0001).putShort(extraSize.toShort())
+				if (sizeOverflows) it.putLong(record.size)
+				if (compressedSizeOverflows) it.putLong(record.compressedSize)
+				if (offsetOverflows) it.putLong(record.offset)
+			}
+		}
+	}
+
+	private inline fun put(fill: (ByteBuffer) -> Unit) {
+		scratch.clear()
+		fill(scratch)
+		out.write(scratch.array(), 0, scratch.position())
+	}
+
+	private class NonClosingOutputStream(out: OutputStream) : FilterOutputStream(out) {
+		override fun write(b: ByteArray, off: Int, len: Int) {
+			out.write(b, off, len)
+		}
+
+		override fun close() {
+			flush()
+		}
+	}
+}
@@ -1,44 +1,66 @@
 package com.soywiz.vitaorganizer
 
 import com.soywiz.util.stream
-import com.soywiz.vitaorganizer.ext.safe_exists
 import java.io.File
 
-class CachedVpkEntry(val file: File) {
-	val entry = VitaOrganizerCache.entry(file)
-	val psf by lazy {
-		try {
-			PSF.read(entry.paramSfoFile.readBytes().stream)
-		} catch (e: Throwable) {
-			mapOf<String, Any>()
+/**
+ * A cache record with its param.sfo parsed and the values shown in the list worked out once.
+ * Instances are shared through [get] by every [CachedVpkEntry] with the same cache key.
+ */
+class ParsedVpkEntry(val record: VitaOrganizerCache.Record?) {
+	companion object {
+		// Enough for a big library, a record with its parsed param.sfo is a few KiB at most
+		private val MAX_ENTRIES = 4096
+		private val entries = object : LinkedHashMap<String, ParsedVpkEntry>(256, 0.75f, true) {
+			override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, ParsedVpkEntry>?): Boolean = size > MAX_ENTRIES
 		}
-	}
-	val gameId by lazy { psf["TITLE_ID"]?.toString() ?: "UNKNOWN" }
-	val hasExtendedPermissions by lazy {
-		try {
-			entry.permissionsFile.readText().toBoolean()
-		} catch (e: Throwable) {
-			true
+
+		/**
+		 * The parsed entry for [cacheKey], calling [record] to read it only when it is not known yet.
+		 * Keys without a record are not remembered, so they are read again once scanned.
+		 */
+		fun get(cacheKey: String, record: () -> VitaOrganizerCache.Record?): ParsedVpkEntry {
+			synchronized(entries) { entries[cacheKey] }?.let { return it }
+			val parsed = ParsedVpkEntry(record())
+			if (parsed.record != null) synchronized(entries) { entries[cacheKey] = parsed }
+			return parsed
+		}
+
+		/**
+		 * Forgets [cacheKey] after its records changed or were deleted.
+		 */
+		fun invalidate(cacheKey: String) {
+			synchronized(entries) { entries.remove(cacheKey) }
+		}
+
+		fun clear() {
+			synchronized(entries) { entries.clear() }
 		}
 	}
-	val attribute by lazy { psf["ATTRIBUTE"].toString() }
-	val id by lazy { psf["TITLE_ID"].toString() }
-	val title by lazy { psf["TITLE"].toString() }
+
+	val psf: Map<String, Any> = try {
+		PSF.read(record!!.paramSfo.stream)
+	} catch (e: Throwable) {
+		mapOf<String, Any>()
+	}
+	val gameId = psf["TITLE_ID"]?.toString() ?: "UNKNOWN"
+	val hasExtendedPermissions = record?.extendedPermissions ?: true
+	val attribute = psf["ATTRIBUTE"].toString()
+	val id = psf["TITLE_ID"].toString()
+	val title = psf["TITLE"].toString()
 	val dumperVersion by lazy {
 		val text = if (attribute.toInt() == 0x8000)
 			"HB"
-		else if (entry.dumperVersionFile.safe_exists())
-			entry.dumperVersionFile.readText();
 		else
-			"UNKNOWN"
+			record?.dumperVersion ?: "UNKNOWN"
 
 		DumperNamesHelper().findDumperByShortName(text).longName
 	}
 	val compressionLevel by lazy {
-		if (entry.compressionFile.safe_exists()) {
+		val method = record?.compression
+		if (method != null) {
 			//see https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT
 			//4.4.5
-			val method = entry.compressionFile.readText()
 			when (method) {
 				"0" -> "not compressed"
 				"1" -> "shrunk"
@@ -65,18 +87,29 @@ class CachedVpkEntry(val file: File) {
 		psf["CATEGORY"] == "gp" -> Texts.format("TYPE_UPDATE")
 		else -> psf["CATEGORY"]?.toString() ?: Texts.format("TYPE_UNKNOWN")
 	}
+	val size: Long = record?.size ?: 0L
+}
+
+// [knownRecord] saves reading back a record that was just written
+class CachedVpkEntry(val file: File, val entry: VitaOrganizerCache.Entry = VitaOrganizerCache.entry(file), knownRecord: VitaOrganizerCache.Record? = null) {
+	private val parsed by lazy { ParsedVpkEntry.get(entry.path) { knownRecord ?: entry.record } }
+
+	val record: VitaOrganizerCache.Record? get() = parsed.record
+	val psf: Map<String, Any> get() = parsed.psf
+	val gameId: String get() = parsed.gameId
+	val hasExtendedPermissions: Boolean get() = parsed.hasExtendedPermissions
+	val attribute: String get() = parsed.attribute
+	val id: String get() = parsed.id
+	val title: String get() = parsed.title
+	val dumperVersion: String get() = parsed.dumperVersion
+	val compressionLevel: String get() = parsed.compressionLevel
+	val type: String get() = parsed.type
 	//var inVita = false
 	//var inPC = false
-	val vpkLocalPath: String? get() = entry.pathFile.readText(Charsets.UTF_8)
+	val vpkLocalPath: String? get() = record?.path
 	val vpkLocalFile: File? get() = if (vpkLocalPath != null) File(vpkLocalPath) else null
 	val vpkLocalVpkFile: VpkFile? get() = if (vpkLocalPath != null) VpkFile(File(vpkLocalPath)) else null
-	val size: Long by lazy {
-		try {
-			entry.sizeFile.readText().toLong()
-		} catch (e: Throwable) {
-			0L
-		}
-	}
+	val size: Long get() = parsed.size
 
 	override fun toString(): String = id
 }
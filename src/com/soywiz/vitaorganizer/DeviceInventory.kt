@@ -0,0 +1,137 @@
+package com.soywiz.vitaorganizer
+
+import com.soywiz.util.KeyValueLog
+import com.soywiz.util.get
+import java.io.*
+
+/**
+ * Games last seen installed on each device, with their param.sfo and icon, so a known device can
+ * show its library right after connecting.
+ *
+ * Records are keyed by device address and title id. [refresh] compares the sizes and times the
+ * device reports for each game's param.sfo and icon0.png against the recorded ones and only
+ * downloads the metadata of games where they changed.
+ *
+ * The address is only where a device was reached, the FTP server tells nothing that identifies
+ * the console itself. A device that gets a new address starts with an empty inventory, and a
+ * different device answering at a known address is shown the other one's games until [refresh]
+ * replaces them.
+ */
+object DeviceInventory {
+	private val log by lazy { KeyValueLog(VitaOrganizerFolders.CONFIG_ROOT["devices"]["inventory.bin"].apply { parentFile.mkdirs() }) }
+
+	class Game(
+		val id: String,
+		val metadataStamp: String,
+		val size: Long,
+		val files: Int,
+		val paramSfo: ByteArray,
+		val icon0: ByteArray
+	) {
+		companion object {
+			private val VERSION = 2
+
+			fun read(data: ByteArray): Game? {
+				val s = DataInputStream(ByteArrayInputStream(data))
+				if (s.readUnsignedByte() != VERSION) return null
+				val id = s.readUTF()
+				val metadataStamp = s.readUTF()
+				val size = s.readLong()
+				val files = s.readInt()
+				val paramSfo = ByteArray(s.readInt()).also { s.readFully(it) }
+				val icon0 = ByteArray(s.readInt()).also { s.readFully(it) }
+				return Game(id, metadataStamp, size, files, paramSfo, icon0)
+			}
+		}
+
+		fun toByteArray(): ByteArray {
+			val out = ByteArrayOutputStream()
+			DataOutputStream(out).use { s ->
+				s.writeByte(VERSION)
+				s.writeUTF(id)
+				s.writeUTF(metadataStamp)
+				s.writeLong(size)
+				s.writeInt(files)
+				s.writeInt(paramSfo.size)
+				s.write(paramSfo)
+				s.writeInt(icon0.size)
+				s.write(icon0)
+			}
+			return out.toByteArray()
+		}
+	}
+
+	// ip:port of the device in use, which stands for the device (see above)
+	private val currentDevice: String get() = "${VitaOrganizerSettings.lastDeviceIp}:${VitaOrganizerSettings.lastDevicePort}"
+
+	private fun key(device: String, id: String) = "$device/$id"
+
+	/**
+	 * The recorded game [id] of the current device, without contacting it.
+	 */
+	operator fun get(id: String): Game? = get(currentDevice, id)
+
+	fun get(device: String, id: String): Game? = try {
+		log[key(device, id)]?.let { Game.read(it) }
+	} catch (e: IOException) {
+		e.printStackTrace()
+		null
+	}
+
+	/**
+	 * Every game recorded for [device], without contacting it.
+	 */
+	fun games(device: String = currentDevice): List<Game> = log.keys.filter { it.startsWith("$device/") }.mapNotNull { get(device, it.substring(device.length + 1)) }
+
+	/**
+	 * Lists the current device and brings its records up to date. [onChanged] is called for every
+	 * game whose metadata had to be downloaded. Returns the games installed now.
+	 */
+	fun refresh(onChanged: (Game) -> Unit = { }): List<Game> {
+		val device = currentDevice
+		val inventory = PsvitaDevice.getGameInventory()
+		val installed = inventory.map { it.id }.toSet()
+		for (game in games(device)) {
+			if (game.id !in installed) log.remove(key(device, game.id))
+		}
+
+		val out = arrayListOf<Game>()
+		val stale = arrayListOf<PsvitaDevice.RemoteGame>()
+		for (remote in inventory) {
+			val cached = get(device, remote.id)
+			if (cached != null && remote.metadataStamp.isNotEmpty() && cached.metadataStamp == remote.metadataStamp) {
+				// Sizes come from the crawl anyway, so they are always current
+				out += if (cached.size == remote.size && cached.files == remote.files) cached else update(device, cached, remote.size, remote.files)
+			} else {
+				stale += remote
+			}
+		}
+
+		val byId = stale.associateBy { it.id }
+		PsvitaDevice.getGamesMetadata(stale.map { it.id }) { metadata ->
+			val remote = byId[metadata.id]!!
+			val game = Game(remote.id, remote.metadataStamp, remote.size, remote.files, metadata.paramSfo, metadata.icon0)
+			// A failed download is retried on the next refresh instead of being recorded as current
+			if (metadata.paramSfo.isNotEmpty()) log[key(device, game.id)] = game.toByteArray()
+			synchronized(out) { out += game }
+			onChanged(game)
+		}
+		sync()
+		return out
+	}
+
+	private fun update(device: String, game: Game, size: Long, files: Int): Game {
+		val updated = Game(game.id, game.metadataStamp, size, files, game.paramSfo, game.icon0)
+		log[key(device, game.id)] = updated.toByteArray()
+		return updated
+	}
+
+	fun sync() {
+		try {
+			log.sync()
+			log.compactIfNeeded()
+		} catch (e: IOException) {
+			e.printStackTrace()
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.soywiz.vitaorganizer
+
+import it.sauronsoftware.ftp4j.FTPClient
+import it.sauronsoftware.ftp4j.FTPException
+import java.io.Closeable
+import java.util.*
+
+/**
+ * Up to [size] logged-in sessions to one device, shared by everything that talks to it.
+ *
+ * Idle sessions are kept alive by ftp4j's auto NOOP timer, so a borrowed session is only checked
+ * with an explicit NOOP when it sat idle for longer than that timer could cover. [borrow] blocks
+ * while all the sessions are in use; every borrowed session has to be given back with [release],
+ * or more conveniently borrowed through [withSession].
+ */
+class FtpConnectionPool(val host: String, val port: Int, val size: Int) : Closeable {
+	companion object {
+		private val KEEPALIVE_INTERVAL = 20000L
+		private val VALIDATE_AFTER_IDLE = 60000L
+	}
+
+	private class Idle(val client: FTPClient, val since: Long)
+
+	private val lock = Object()
+	private val idle = ArrayDeque<Idle>()
+	private var open = 0
+	private var closed = false
+
+	/**
+	 * Sessions dropped because they broke or the device closed them. When it changes the device may
+	 * have restarted, so anything remembered about its state should be checked again.
+	 */
+	@Volatile var lostSessions = 0; private set
+
+	fun borrow(): FTPClient {
+		while (true) {
+			val candidate = synchronized(lock) {
+				while (!closed && idle.isEmpty() && open >= size) lock.wait()
+				if (closed) throw IllegalStateException("Connection pool for $host:$port is closed")
+				if (idle.isEmpty()) {
+					open++
+					null
+				} else {
+					idle.removeLast()
+				}
+			}
+
+			if (candidate == null) {
+				try {
+					return connect()
+				} catch (e: Throwable) {
+					discarded()
+					throw e
+				}
+			}
+
+			if (candidate.client.isConnected && (System.currentTimeMillis() - candidate.since < VALIDATE_AFTER_IDLE || isAlive(candidate.client))) {
+				return candidate.client
+			}
+			disconnect(candidate.client)
+			synchronized(lock) { lostSessions++ }
+			discarded()
+		}
+	}
+
+	/**
+	 * Gives [client] back to the pool. A [broken] session, one that failed in a way that may have
+	 * left it in an unknown state, is closed instead of reused.
+	 */
+	fun release(client: FTPClient, broken: Boolean = false) {
+		if (broken || !client.isConnected) {
+			disconnect(client)
+			synchronized(lock) { lostSessions++ }
+			discarded()
+			return
+		}
+		synchronized(lock) {
+			if (!closed) {
+				idle += Idle(client, System.currentTimeMillis())
+				lock.notifyAll()
+				return
+			}
+		}
+		disconnect(client)
+		discarded()
+	}
+
+	inline fun <T> withSession(callback: (FTPClient) -> T): T {
+		val client = borrow()
+		var broken = true
+		try {
+			val result = callback(client)
+			broken = false
+			return result
+		} catch (e: FTPException) {
+			// The server refused the command, the session itself is fine
+			broken = false
+			throw e
+		} finally {
+			release(client, broken)
+		}
+	}
+
+	override fun close() {
+		val clients = synchronized(lock) {
+			closed = true
+			lock.notifyAll()
+			idle.map { it.client }.also { idle.clear() }
+		}
+		for (client in clients) {
+			disconnect(client)
+			discarded()
+		}
+	}
+
+	private fun discarded() {
+		synchronized(lock) {
+			open--
+			lock.notifyAll()
+		}
+	}
+
+	private fun connect(): FTPClient {
+		println("Connecting to ftp $host:$port...")
+		val client = FTPClient()
+		client.type = FTPClient.TYPE_BINARY
+		client.connector.setCloseTimeout(20)
+		client.connector.setReadTimeout(240) // PROM could take a lot of time!
+		client.connector.setConnectionTimeout(120)
+		client.connect(host, port)
+		try {
+			client.login("", "")
+		} catch (e: Throwable) {
+			disconnect(client)
+			throw e
+		}
+		client.autoNoopTimeout = KEEPALIVE_INTERVAL
+		println("Connected")
+		return client
+	}
+
+	private fun isAlive(client: FTPClient): Boolean = try {
+		client.noop()
+		true
+	} catch (e: Throwable) {
+		false
+	}
+
+	private fun disconnect(client: FTPClient) {
+		try {
+			client.autoNoopTimeout = 0L
+			if (client.isConnected) client.disconnect(false)
+		} catch (e: Throwable) {
+		}
+	}
+}
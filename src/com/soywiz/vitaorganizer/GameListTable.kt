@@ -1,37 +1,33 @@
 package com.soywiz.vitaorganizer
 
-import com.soywiz.util.stream
 import com.soywiz.vitaorganizer.ext.getResourceBytes
-import com.soywiz.vitaorganizer.ext.getScaledImage
 import java.awt.BorderLayout
 import java.awt.Font
+import java.awt.Image
 import java.awt.Point
 import java.awt.event.KeyAdapter
 import java.awt.event.KeyEvent
 import java.awt.event.MouseAdapter
 import java.awt.event.MouseEvent
+import java.awt.image.BufferedImage
 import java.io.ByteArrayInputStream
+import java.io.File
+import java.util.*
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 import javax.imageio.ImageIO
 import javax.swing.*
 import javax.swing.event.RowSorterEvent
 import javax.swing.table.DefaultTableCellRenderer
-import javax.swing.table.DefaultTableModel
 import javax.swing.table.TableModel
 import javax.swing.table.TableRowSorter
 
 open class GameListTable : JPanel(BorderLayout()) {
-	val model2 = object : DefaultTableModel() {
-		override fun isCellEditable(row: Int, column: Int): Boolean {
-			return false
-		}
-	}
-
+	val model2 = GameListTableModel { row -> iconFor(row) }
 
-	val table = object : JTable(model2) {
-		override fun getColumnClass(column: Int): Class<*> {
-			return getValueAt(0, column).javaClass
-		}
-	}
+	val table = JTable(model2)
 	val scrollPanel = JScrollPane(table)
 	lateinit var sorter: TableRowSorter<TableModel>
 
@@ -49,32 +45,10 @@ open class GameListTable : JPanel(BorderLayout()) {
 			val matcher = Regex("(?i)$value")
 
 			sorter.rowFilter = RowFilter.regexFilter("(?i)$value")
-			sorter.rowFilter = object : RowFilter<TableModel, Any>() {
-				override fun include(value: Entry<out TableModel, out Any>): Boolean {
-					//matcher.matches(entry.getStringValue(entry.))
-					//val model = entry.model
-					//table.cell
-					//return true
-
-					for (index in 0 until value.valueCount) {
-						if (index < value.valueCount) {
-							if (include(value.getValue(index))) return true
-						}
-					}
-					return false
-				}
-
-				private fun include(item: Any): Boolean {
-					when (item) {
-						is CachedVpkEntry -> {
-							for (value in item.psf.values) {
-								if (matcher.containsMatchIn(value.toString())) return true
-							}
-							return false
-						}
-						else -> return matcher.containsMatchIn(item.toString())
-					}
-				}
+			sorter.rowFilter = object : RowFilter<TableModel, Int>() {
+				// Reads the row's own text instead of the cells, so filtering does not load every icon
+				override fun include(value: Entry<out TableModel, out Int>): Boolean =
+					model2.getRow(value.identifier).searchText.any { matcher.containsMatchIn(it) }
 			}
 		}
 	}
@@ -82,6 +56,10 @@ open class GameListTable : JPanel(BorderLayout()) {
 	fun setSorter() {
 		sorter = TableRowSorter<TableModel>(model2).apply {
 			setComparator(5, { a, b -> (a as Comparable<Any>).compareTo((b as Comparable<Any>)) })
+			// Rows are updated in place, so updated rows have to move to their sorted position
+			sortsOnUpdates = true
+			setSortable(0, false)
+			sortKeys = listOf(RowSorter.SortKey(6, SortOrder.ASCENDING))
 			//rowFilter = object : RowFilter<TableModel, Any>() {
 			//	override fun include(entry: Entry<out TableModel, out Any>?): Boolean {
 			//		return true
@@ -136,8 +114,7 @@ open class GameListTable : JPanel(BorderLayout()) {
 		table.fillsViewportHeight = true
 
 		fun createColumn(text: String): Int {
-			val id = model2.columnCount
-			model2.addColumn(text.toString())
+			val id = model2.addColumn(text.toString())
 			//return table.columnModel.getColumn(id)
 			return id
 			//return table.getColumn(text.toString())
@@ -272,7 +249,7 @@ open class GameListTable : JPanel(BorderLayout()) {
 		//filter = "Plant"
 	}
 
-	fun getEntryAtRow(row: Int): CachedVpkEntry = model2.getValueAt(table.convertRowIndexToModel(row), 1) as CachedVpkEntry
+	fun getEntryAtRow(row: Int): CachedVpkEntry = model2.getRow(table.convertRowIndexToModel(row)).entry
 
 	val currentEntry: CachedVpkEntry get() = getEntryAtRow(table.selectedRow)
 
@@ -296,62 +273,107 @@ open class GameListTable : JPanel(BorderLayout()) {
 		}
 	}
 
+	/**
+	 * Replaces the list with [games], only touching the rows that were added, removed or whose
+	 * VPK changed since the last call.
+	 */
 	fun setEntries(games: List<CachedVpkEntry>) {
-		val newRows = arrayListOf<Array<Any>>()
+		val newRows = createRows(games)
+		val keys = newRows.map { it.key }.toHashSet()
+		onUiThread {
+			for (key in model2.keys.filter { it !in keys }) model2.remove(key)
+			putRows(newRows)
+		}
+	}
+
+	/**
+	 * Inserts or updates rows for [games] leaving the rest of the list untouched.
+	 */
+	fun addEntries(games: List<CachedVpkEntry>) {
+		val newRows = createRows(games)
+		onUiThread {
+			putRows(newRows)
+		}
+	}
 
-		val dummyIcon = getResourceBytes("com/soywiz/vitaorganizer/dummy128.png")
+	/**
+	 * Removes every row whose file is not in [files].
+	 */
+	fun retainEntries(files: Collection<File>) {
+		val keys = files.map { it.absoluteFile }.toHashSet()
+		onUiThread {
+			for (key in model2.keys.filter { it !in keys }) model2.remove(key)
+		}
+	}
 
-		for (entry in games.sortedBy { it.title }) {
+	fun removeEntry(file: File) {
+		onUiThread {
+			model2.remove(file.absoluteFile)
+		}
+	}
+
+	private fun putRows(newRows: List<GameRow>) {
+		for (row in newRows) {
+			if (model2[row.key]?.cacheKey != row.cacheKey) model2.put(row)
+		}
+	}
+
+	private fun onUiThread(callback: () -> Unit) {
+		if (SwingUtilities.isEventDispatchThread()) callback() else SwingUtilities.invokeLater(callback)
+	}
+
+	// Called from tasks, never on the event dispatch thread: each row reads its record for the title
+	private fun createRows(games: List<CachedVpkEntry>): List<GameRow> {
+		val newRows = arrayListOf<GameRow>()
+		for (entry in games) {
 			try {
-				val entry2 = entry.entry
-				val icon = entry2.icon0File
-				val iconBytes = icon.readBytes()
-				val image = ImageIO.read(ByteArrayInputStream(when {
-					iconBytes.isEmpty() -> dummyIcon
-					else -> iconBytes
-				}))
-				val psf = PSF.read(entry2.paramSfoFile.readBytes().stream)
-				val extendedPermissions = entry.hasExtendedPermissions
-				val type = entry.type
-
-				//if (entry.inVita && entry.inPC) {
-				//	Texts.format("LOCATION_BOTH")
-				//} else if (entry.inVita) {
-				//	Texts.format("LOCATION_VITA")
-				//} else if (entry.inPC) {
-				//	Texts.format("LOCATION_PC")
-				//} else {
-				//	Texts.format("LOCATION_NONE")
-				//},
-
-				//println(psf)
-				if (image != null) {
-					newRows.add(arrayOf(
-						ImageIcon(image.getScaledImage(64, 64)),
-						entry,
-						type,
-						psf["APP_VER"] ?: psf["VERSION"] ?: Texts.format("UNKNOWN_VERSION"),
-						(if (extendedPermissions) Texts.format("PERMISSIONS_UNSAFE") else Texts.format("PERMISSIONS_SAFE")),
-						FileSize(entry.size),
-						entry.title
-					))
-				}
+				newRows += GameRow(entry)
 			} catch (e: Throwable) {
 				println("Error processing: ${entry.gameId} : ${entry.file}")
 				e.printStackTrace()
 			}
 		}
+		return newRows
+	}
 
-		if (newRows.any()) {
-			model2.rowCount = 0
-
-			for (row in newRows)
-				model2.addRow(row)
-
-			model2.fireTableDataChanged()
+	// Icons are only decoded for rows the table actually paints, newest requests first
+	private val ICON_CACHE_SIZE = 256
+	private val iconCache = object : LinkedHashMap<String, Icon>(ICON_CACHE_SIZE, 0.75f, true) {
+		override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Icon>?): Boolean = size > ICON_CACHE_SIZE
+	}
+	private val pendingIcons = hashSetOf<String>()
+	private val placeholderIcon = ImageIcon(BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB))
+	private val dummyIcon by lazy { getResourceBytes("com/soywiz/vitaorganizer/dummy128.png") }
+	private val iconLoader = ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, object : LinkedBlockingDeque<Runnable>() {
+		override fun offer(e: Runnable): Boolean = offerFirst(e)
+	}, ThreadFactory { runnable -> Thread(runnable, "icon-loader").apply { isDaemon = true } })
+
+	private fun iconFor(row: GameRow): Icon {
+		val cached = iconCache[row.cacheKey]
+		if (cached != null) return cached
+		if (pendingIcons.add(row.cacheKey)) {
+			iconLoader.execute {
+				val image = try {
+					loadIcon(row.entry)
+				} catch (e: Throwable) {
+					e.printStackTrace()
+					null
+				}
+				SwingUtilities.invokeLater {
+					pendingIcons.remove(row.cacheKey)
+					iconCache[row.cacheKey] = if (image != null) ImageIcon(image) else placeholderIcon
+					model2.fireIconChanged(row.key)
+				}
+			}
 		}
+		return placeholderIcon
+	}
 
-		//sorter.sort()
-
+	private fun loadIcon(entry: CachedVpkEntry): Image? = VitaOrganizerCache.iconAtlas.getOrPut(entry.entry.path) {
+		val iconBytes = entry.entry.icon0
+		ImageIO.read(ByteArrayInputStream(when {
+			iconBytes.isEmpty() -> dummyIcon
+			else -> iconBytes
+		}))
 	}
 }
@@ -0,0 +1,112 @@
+package com.soywiz.vitaorganizer
+
+import java.io.File
+import javax.swing.Icon
+import javax.swing.ImageIcon
+import javax.swing.table.AbstractTableModel
+
+/**
+ * A game in the list. Every column is its own field worked out the first time it is read, so
+ * sorting or filtering by one column does not build the others for every row. The exception is
+ * [title], the column the list starts sorted by: it is read when the row is created, which
+ * happens off the event dispatch thread, so the first sort does not load every record there.
+ */
+class GameRow(val entry: CachedVpkEntry) {
+	val key: File = entry.file.absoluteFile
+	val cacheKey: String = entry.entry.path
+
+	val title: String = entry.title
+	val type: String by lazy { entry.type }
+	val version: String by lazy {
+		val psf = entry.psf
+		(psf["APP_VER"] ?: psf["VERSION"] ?: Texts.format("UNKNOWN_VERSION")).toString()
+	}
+	val permissions: String by lazy { if (entry.hasExtendedPermissions) Texts.format("PERMISSIONS_UNSAFE") else Texts.format("PERMISSIONS_SAFE") }
+	val size: FileSize by lazy { FileSize(entry.size) }
+
+	// What the filter looks at: every param.sfo value (id and title included) and the other columns
+	val searchText: List<String> by lazy { entry.psf.values.map { it.toString() } + listOf(type, version, permissions, size.toString()) }
+
+	fun cell(column: Int): Any = when (column) {
+		1 -> entry
+		2 -> type
+		3 -> version
+		4 -> permissions
+		5 -> size
+		6 -> title
+		else -> throw IndexOutOfBoundsException("No column $column")
+	}
+}
+
+/**
+ * Table model whose rows are keyed by VPK file, so single games can be inserted, updated or
+ * removed with row level events instead of rebuilding the whole table.
+ *
+ * Model order does not matter because the table always shows rows through its sorter; a removed
+ * row is filled with the last one so removal does not shift every row after it. The icon column
+ * is asked to [iconFor], which is expected to answer right away and load the real icon later.
+ * Must only be touched from the event dispatch thread.
+ */
+class GameListTableModel(private val iconFor: (GameRow) -> Icon) : AbstractTableModel() {
+	companion object {
+		// Known up front so the table never has to look at a row to find out
+		private val COLUMN_CLASSES = listOf<Class<*>>(ImageIcon::class.java, CachedVpkEntry::class.java, String::class.java, String::class.java, String::class.java, FileSize::class.java, String::class.java)
+	}
+
+	private val columns = arrayListOf<String>()
+	private val rows = arrayListOf<GameRow>()
+	private val rowIndex = hashMapOf<File, Int>()
+
+	val keys: Set<File> get() = rowIndex.keys
+
+	fun addColumn(name: String): Int {
+		columns += name
+		fireTableStructureChanged()
+		return columns.size - 1
+	}
+
+	override fun getRowCount(): Int = rows.size
+
+	override fun getColumnCount(): Int = columns.size
+
+	override fun getColumnName(column: Int): String = columns[column]
+
+	override fun getColumnClass(column: Int): Class<*> = COLUMN_CLASSES.getOrElse(column) { Any::class.java }
+
+	override fun getValueAt(row: Int, column: Int): Any = if (column == 0) iconFor(rows[row]) else rows[row].cell(column)
+
+	override fun isCellEditable(row: Int, column: Int): Boolean = false
+
+	fun getRow(row: Int): GameRow = rows[row]
+
+	operator fun get(key: File): GameRow? = rowIndex[key]?.let { rows[it] }
+
+	fun put(row: GameRow) {
+		val index = rowIndex[row.key]
+		if (index != null) {
+			rows[index] = row
+			fireTableRowsUpdated(index, index)
+		} else {
+			rows += row
+			rowIndex[row.key] = rows.size - 1
+			fireTableRowsInserted(rows.size - 1, rows.size - 1)
+		}
+	}
+
+	fun remove(key: File) {
+		val index = rowIndex.remove(key) ?: return
+		val last = rows.size - 1
+		if (index != last) {
+			rows[index] = rows[last]
+			rowIndex[rows[index].key] = index
+		}
+		rows.removeAt(last)
+		fireTableRowsDeleted(last, last)
+		if (index != last) fireTableRowsUpdated(index, index)
+	}
+
+	fun fireIconChanged(key: File) {
+		val index = rowIndex[key] ?: return
+		fireTableCellUpdated(index, 0)
+	}
+}
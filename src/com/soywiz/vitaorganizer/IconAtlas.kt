@@ -0,0 +1,126 @@
+package com.soywiz.vitaorganizer
+
+import com.soywiz.vitaorganizer.ext.getScaledImage
+import java.awt.Image
+import java.awt.image.BufferedImage
+import java.awt.image.DataBufferInt
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.IntBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+
+/**
+ * Pre-scaled thumbnails stored as fixed-size ARGB tiles in a memory-mapped file.
+ *
+ * Each slot is a zero padded cache key followed by tileSize*tileSize ARGB pixels, so reading a
+ * thumbnail is a copy out of the mapping with no PNG decoding or rescaling. Slots freed by
+ * [remove] are reused, and the file grows in chunks of [CHUNK_SLOTS] tiles, each one mapped on its
+ * own. Growing only maps the new chunk and keeps the earlier mappings, so no mapping is ever left
+ * for the GC to release (which keeps the file locked on Windows). The key is written after the
+ * pixels so a slot only becomes visible once its tile is complete.
+ */
+class IconAtlas(val file: File, val tileSize: Int = 64) {
+	companion object {
+		private val KEY_SIZE = 64
+		private val CHUNK_SLOTS = 256
+	}
+
+	private val tileBytes = tileSize * tileSize * 4
+	private val slotSize = KEY_SIZE + tileBytes
+	private val channel = RandomAccessFile(file, "rw").channel
+	private val chunks = arrayListOf<MappedByteBuffer>()
+	private val slotCount: Int get() = chunks.size * CHUNK_SLOTS
+	private val index = hashMapOf<String, Int>()
+	private val freeSlots = ArrayDeque<Int>()
+
+	init {
+		val existingSlots = (channel.size() / slotSize).toInt()
+		do grow() while (slotCount < existingSlots)
+		freeSlots.clear()
+		for (slot in 0 until slotCount) {
+			val key = readKey(slot)
+			if (key != null) index[key] = slot else freeSlots += slot
+		}
+	}
+
+	@Synchronized operator fun get(key: String): BufferedImage? {
+		val slot = index[key] ?: return null
+		val image = BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB)
+		tile(slot).get((image.raster.dataBuffer as DataBufferInt).data)
+		return image
+	}
+
+	@Synchronized fun put(key: String, image: Image): BufferedImage {
+		val scaled = image.getScaledImage(tileSize, tileSize) as BufferedImage
+		val slot = index[key] ?: allocate()
+		tile(slot).put(scaled.getRGB(0, 0, tileSize, tileSize, null, 0, tileSize))
+		writeKey(slot, key)
+		index[key] = slot
+		return scaled
+	}
+
+	fun getOrPut(key: String, decode: () -> Image?): BufferedImage? {
+		val cached = this[key]
+		if (cached != null) return cached
+		val image = decode() ?: return null
+		return put(key, image)
+	}
+
+	@Synchronized fun remove(key: String) {
+		val slot = index.remove(key) ?: return
+		writeKey(slot, "")
+		freeSlots += slot
+	}
+
+	@Synchronized fun clear() {
+		for (slot in index.values) writeKey(slot, "")
+		index.clear()
+		freeSlots.clear()
+		for (slot in 0 until slotCount) freeSlots += slot
+	}
+
+	@Synchronized fun sync() {
+		for (chunk in chunks) chunk.force()
+	}
+
+	private fun allocate(): Int {
+		if (freeSlots.isEmpty()) grow()
+		return freeSlots.removeFirst()
+	}
+
+	private fun grow() {
+		val first = slotCount
+		chunks += channel.map(FileChannel.MapMode.READ_WRITE, first.toLong() * slotSize, CHUNK_SLOTS.toLong() * slotSize)
+		for (slot in first until slotCount) freeSlots += slot
+	}
+
+	// A view of the chunk holding [slot], positioned at the start of the slot
+	private fun slotView(slot: Int): ByteBuffer {
+		val view = chunks[slot / CHUNK_SLOTS].duplicate()
+		view.position((slot % CHUNK_SLOTS) * slotSize)
+		return view
+	}
+
+	private fun tile(slot: Int): IntBuffer {
+		val view = slotView(slot)
+		view.position(view.position() + KEY_SIZE)
+		view.limit(view.position() + tileBytes)
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+	}
+
+	private fun readKey(slot: Int): String? {
+		val bytes = ByteArray(KEY_SIZE)
+		slotView(slot).get(bytes)
+		val length = bytes.indexOf(0).let { if (it < 0) KEY_SIZE else it }
+		return if (length == 0) null else String(bytes, 0, length, Charsets.UTF_8)
+	}
+
+	private fun writeKey(slot: Int, key: String) {
+		val bytes = Arrays.copyOf(key.toByteArray(Charsets.UTF_8), KEY_SIZE)
+		slotView(slot).put(bytes)
+	}
+}
@@ -0,0 +1,134 @@
+package com.soywiz.vitaorganizer
+
+import java.io.IOException
+import java.net.Inet4Address
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.NetworkInterface
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.SocketChannel
+import java.util.*
+
+/**
+ * Finds devices listening on the FTP port in the local networks.
+ *
+ * Every private IPv4 subnet of every interface that is up is scanned from a single thread with
+ * non-blocking connects multiplexed on a [Selector], keeping at most maxInFlight connects open.
+ */
+object LanDiscovery {
+	// Bigger networks are only scanned around our own address, a /8 would take forever
+	const val MIN_PREFIX_LENGTH = 20
+
+	class Subnet(val address: Int, val prefixLength: Int) {
+		val hosts: List<Int> get() = subnetHosts(address, prefixLength)
+
+		override fun toString(): String = "${intToAddress(address).hostAddress}/$prefixLength"
+	}
+
+	fun localSubnets(): List<Subnet> {
+		val out = arrayListOf<Subnet>()
+		for (networkInterface in NetworkInterface.getNetworkInterfaces()?.toList() ?: listOf()) {
+			try {
+				if (!networkInterface.isUp || networkInterface.isLoopback) continue
+				for (interfaceAddress in networkInterface.interfaceAddresses) {
+					val address = interfaceAddress.address
+					if (address is Inet4Address && address.isSiteLocalAddress) {
+						out += Subnet(addressToInt(address), interfaceAddress.networkPrefixLength.toInt())
+					}
+				}
+			} catch (e: IOException) {
+				e.printStackTrace()
+			}
+		}
+		return out
+	}
+
+	/**
+	 * Host addresses of the network containing [address], without the network and broadcast
+	 * addresses and without [address] itself. Prefixes shorter than [MIN_PREFIX_LENGTH] are
+	 * narrowed to it.
+	 */
+	fun subnetHosts(address: Int, prefixLength: Int): List<Int> {
+		val prefix = Math.max(MIN_PREFIX_LENGTH, Math.min(prefixLength, 32))
+		val hosts = when (prefix) {
+			32 -> listOf()
+			// Point to point links have no network or broadcast address
+			31 -> listOf(address and -2, address or 1)
+			else -> {
+				val mask = -1 shl (32 - prefix)
+				val network = address and mask
+				val broadcast = network or mask.inv()
+				((network + 1) until broadcast).toList()
+			}
+		}
+		return hosts.filter { it != address }
+	}
+
+	fun addressToInt(address: InetAddress): Int = address.address.fold(0) { acc, byte -> (acc shl 8) or (byte.toInt() and 0xFF) }
+
+	fun intToAddress(address: Int): InetAddress = InetAddress.getByAddress(byteArrayOf((address ushr 24).toByte(), (address ushr 16).toByte(), (address ushr 8).toByte(), address.toByte()))
+
+	/**
+	 * Tries [port] on every host of [subnets], calling [onFound] from the scanning thread with each
+	 * address as soon as it accepts the connection. Returns all the addresses found once every host
+	 * answered or timed out.
+	 */
+	fun discover(port: Int = 1337, subnets: List<Subnet> = localSubnets(), timeout: Int = 1000, maxInFlight: Int = 256, onFound: (String) -> Unit = { }): List<String> {
+		val pending = ArrayDeque(subnets.flatMap { it.hosts }.distinct())
+		val found = arrayListOf<String>()
+
+		fun report(host: Int) {
+			val ip = intToAddress(host).hostAddress
+			found += ip
+			onFound(ip)
+		}
+
+		Selector.open().use { selector ->
+			while (pending.isNotEmpty() || selector.keys().isNotEmpty()) {
+				while (pending.isNotEmpty() && selector.keys().size < maxInFlight) {
+					val host = pending.removeFirst()
+					val channel = SocketChannel.open()
+					try {
+						channel.configureBlocking(false)
+						if (channel.connect(InetSocketAddress(intToAddress(host), port))) {
+							channel.close()
+							report(host)
+						} else {
+							channel.register(selector, SelectionKey.OP_CONNECT, Attempt(host, System.currentTimeMillis() + timeout))
+						}
+					} catch (e: IOException) {
+						channel.close()
+					}
+				}
+
+				selector.select(50L)
+				for (key in selector.selectedKeys()) {
+					val channel = key.channel() as SocketChannel
+					val attempt = key.attachment() as Attempt
+					try {
+						if (channel.finishConnect()) report(attempt.host)
+					} catch (e: IOException) {
+						// Refused or unreachable
+					}
+					key.cancel()
+					channel.close()
+				}
+				selector.selectedKeys().clear()
+
+				val now = System.currentTimeMillis()
+				for (key in selector.keys().toList()) {
+					if (key.isValid && now >= (key.attachment() as Attempt).deadline) {
+						key.cancel()
+						key.channel().close()
+					}
+				}
+				// Flushes the cancelled keys out of the key set
+				selector.selectNow()
+			}
+		}
+		return found
+	}
+
+	private class Attempt(val host: Int, val deadline: Long)
+}
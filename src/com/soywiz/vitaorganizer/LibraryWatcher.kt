@@ -0,0 +1,203 @@
+package com.soywiz.vitaorganizer
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.nio.file.*
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Watches the VPK folder and up to [maxDepth] levels of subfolders, and reports which paths changed
+ * so they can be indexed one by one instead of rescanning the whole library.
+ *
+ * Local folders use a [WatchService]. Network shares, where change notifications are unreliable or
+ * missing, folders that can't be registered and watchers created with [alwaysPoll] are polled every
+ * [pollInterval] ms instead. Events for a path are held until it has been quiet for a while, so a
+ * VPK being copied is reported once when the copy ends. [onChanged] gets VPK files that appeared or
+ * changed and paths that were deleted, which may have been folders. [onOverflow] is called when
+ * events were lost and only a full rescan can tell what changed.
+ */
+class LibraryWatcher(
+	val root: File,
+	val maxDepth: Int,
+	val onChanged: (Set<File>) -> Unit,
+	val onOverflow: () -> Unit,
+	val pollInterval: Long = POLL_INTERVAL,
+	val alwaysPoll: Boolean = false
+) : Closeable {
+	companion object {
+		val POLL_INTERVAL = 5000L
+		private val WATCH_QUIET_PERIOD = 1500L
+		private val NETWORK_FILESYSTEMS = setOf("nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "afpfs", "webdav", "davfs", "9p")
+
+		fun isVpk(file: File) = file.extension.toLowerCase() == "vpk"
+	}
+
+	@Volatile private var closed = false
+	private var service: WatchService? = null
+	private val pending = LinkedHashMap<File, Long>()
+	private val thread = Thread({ run() }, "vpk-watcher").apply { isDaemon = true }
+
+	fun start() {
+		thread.start()
+	}
+
+	override fun close() {
+		closed = true
+		synchronized(this) {
+			try {
+				service?.close()
+			} catch (e: IOException) {
+			}
+		}
+		thread.interrupt()
+	}
+
+	private fun run() {
+		val path = root.toPath()
+		try {
+			if (!alwaysPoll && !isNetworkShare(path)) {
+				val service = synchronized(this) {
+					if (closed) return
+					path.fileSystem.newWatchService().also { this.service = it }
+				}
+				watch(service, path)
+				return
+			}
+		} catch (e: ClosedWatchServiceException) {
+			return
+		} catch (e: InterruptedException) {
+			return
+		} catch (e: Throwable) {
+			println("Can't watch $root ($e), polling it instead")
+			// Registering may have failed half way, the service would keep its native resources
+			synchronized(this) {
+				try {
+					service?.close()
+				} catch (e: IOException) {
+				}
+				service = null
+			}
+		}
+		try {
+			poll()
+		} catch (e: InterruptedException) {
+		}
+	}
+
+	private fun isNetworkShare(path: Path): Boolean {
+		if (path.toString().startsWith("\\\\")) return true
+		val type = try {
+			Files.getFileStore(path).type().toLowerCase()
+		} catch (e: IOException) {
+			return true
+		}
+		return type in NETWORK_FILESYSTEMS || type.startsWith("fuse.")
+	}
+
+	private fun watch(service: WatchService, root: Path) {
+		val directories = hashMapOf<WatchKey, Pair<Path, Int>>()
+
+		// Registers [directory] and its subfolders, and reports VPKs already in them
+		fun register(directory: Path, depth: Int, reportExisting: Boolean) {
+			val key = directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY)
+			directories[key] = directory to depth
+			for (child in directory.toFile().listFiles() ?: arrayOf<File>()) {
+				if (child.isDirectory) {
+					if (depth < maxDepth) register(child.toPath(), depth + 1, reportExisting)
+				} else if (reportExisting && isVpk(child)) {
+					changed(child)
+				}
+			}
+		}
+
+		register(root, 0, false)
+		while (!closed) {
+			val key = service.poll(nextDue(WATCH_QUIET_PERIOD) ?: Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+			if (key != null) {
+				val (directory, depth) = directories[key] ?: continue
+				for (event in key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						synchronized(pending) { pending.clear() }
+						onOverflow()
+						continue
+					}
+					val child = directory.resolve(event.context() as Path)
+					val file = child.toFile()
+					when {
+						event.kind() == StandardWatchEventKinds.ENTRY_DELETE -> changed(file)
+						file.isDirectory -> if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && depth < maxDepth) {
+							try {
+								register(child, depth + 1, true)
+							} catch (e: IOException) {
+								e.printStackTrace()
+							}
+						}
+						isVpk(file) -> changed(file)
+					}
+				}
+				if (!key.reset()) directories.remove(key)
+			}
+			flushDue(WATCH_QUIET_PERIOD)
+		}
+	}
+
+	private fun poll() {
+		// A file still growing between two polls is held until it stops changing
+		val quietPeriod = pollInterval * 2
+		var snapshot = snapshot()
+		while (!closed) {
+			Thread.sleep(pollInterval)
+			val current = snapshot()
+			for ((file, stat) in current) {
+				if (snapshot[file] != stat) changed(file)
+			}
+			for (file in snapshot.keys) {
+				if (file !in current) changed(file)
+			}
+			snapshot = current
+			flushDue(quietPeriod)
+		}
+	}
+
+	private data class Stat(val size: Long, val modified: Long)
+
+	private fun snapshot(): Map<File, Stat> {
+		val out = hashMapOf<File, Stat>()
+		fun scan(folder: File, depth: Int) {
+			for (child in folder.listFiles() ?: return) {
+				if (child.isDirectory) {
+					if (depth < maxDepth) scan(child, depth + 1)
+				} else if (isVpk(child)) {
+					out[child] = Stat(child.length(), child.lastModified())
+				}
+			}
+		}
+		scan(root, 0)
+		return out
+	}
+
+	private fun changed(file: File) {
+		synchronized(pending) {
+			pending.remove(file)
+			pending[file] = System.currentTimeMillis()
+		}
+	}
+
+	// Milliseconds until the oldest pending path has been quiet for [quietPeriod], null if none
+	private fun nextDue(quietPeriod: Long): Long? = synchronized(pending) {
+		val oldest = pending.values.min() ?: return null
+		Math.max(1L, oldest + quietPeriod - System.currentTimeMillis())
+	}
+
+	private fun flushDue(quietPeriod: Long) {
+		val now = System.currentTimeMillis()
+		val due = synchronized(pending) {
+			val files = pending.filter { it.value + quietPeriod <= now }.keys.toSet()
+			for (file in files) pending.remove(file)
+			files
+		}
+		if (due.isNotEmpty() && !closed) onChanged(due)
+	}
+}
@@ -1,21 +1,22 @@
 package com.soywiz.vitaorganizer
 
 import com.soywiz.util.OS
+import com.soywiz.util.RawZipReader
 import com.soywiz.util.stream
 import com.soywiz.vitaorganizer.ext.*
-import it.sauronsoftware.ftp4j.FTPClient
 import it.sauronsoftware.ftp4j.FTPDataTransferListener
-import it.sauronsoftware.ftp4j.FTPException
 import it.sauronsoftware.ftp4j.FTPFile
-import java.io.File
-import java.io.FileInputStream
-import java.io.FileOutputStream
-import java.io.IOException
+import java.io.*
 import java.net.InetSocketAddress
-import java.net.NetworkInterface
 import java.net.Socket
+import java.nio.ByteBuffer
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.CRC32
 import java.util.zip.ZipEntry
-import java.util.zip.ZipFile
+import java.util.zip.ZipException
 import java.util.zip.ZipOutputStream
 import javax.swing.JOptionPane
 
@@ -30,22 +31,8 @@ object ConnectionMgr {
 	var connected: Boolean = false
 	var authenticated: Boolean = false
 	var transferingdata: Boolean = false
-	val ftp: FTPClient = FTPClient()
 	val lock: Any = Any()
 
-	init {
-		ftp.setType(FTPClient.TYPE_BINARY)
-		ftp.setPassive(true)
-		setFtpTimeouts()
-	}
-
-	fun setFtpTimeouts() {
-		ftp.connector.setCloseTimeout(20)
-		ftp.connector.setReadTimeout(240) // PROM could take a lot of time!
-		ftp.connector.setConnectionTimeout(120)
-		ftp.connector.setCloseTimeout(5)
-	}
-
 	fun setConnectionStatus(connected: Boolean, authenticated: Boolean) {
 		this.connected = connected
 		this.authenticated = authenticated
@@ -70,142 +57,78 @@ object ConnectionMgr {
 		}
 	}
 
-	fun discoverIp(port: Int = 1337): List<String> {
-		val ips = NetworkInterface.getNetworkInterfaces().toList().flatMap { it.inetAddresses.toList() }
-		val ips2 = ips.map { it.hostAddress }.filter { it.startsWith("192.") }
-		val ipEnd = Regex("\\.(\\d+)$")
-		val availableIps = arrayListOf<String>()
-		var rest = 256
-		for (baseIp in ips2) {
-			for (n in 0 until 256) {
-				Thread {
-					val ip = baseIp.replace(ipEnd, "\\.$n")
-					if (checkAddress(ip, port)) {
-						availableIps += ip
-					}
-					rest--
-				}.start()
-			}
-		}
-		while (rest > 0) {
-			//println(rest)
-			Thread.sleep(20L)
-		}
-		//println(availableIps)
-		return availableIps
-	}
+	fun discoverIp(port: Int = 1337, onFound: (String) -> Unit = { }): List<String> = LanDiscovery.discover(port, onFound = onFound)
 
 	fun isConnected(): Boolean {
-		//maybe send a NOOP to see if it throws an exception,
-		//because ftp.isConnected()
-		//is not reliable. The server could terminate the
-		//connection without these functions knowing about it
-		//immediatelly which causes us problems
-		return ftp.isConnected() && this.connected;
+		//only what the last connect or disconnect saw, the device could
+		//have gone away since. Operations find out when they borrow a
+		//session from the pool
+		return this.connected;
 	}
 
 	fun isAuthenticated(): Boolean {
-		return ftp.isAuthenticated() && this.authenticated;
+		return this.authenticated;
 	}
 
 	fun isDisconnected(): Boolean {
-		//again, not reliable
-		return !ftp.isConnected() && !this.connected;
+		return !this.connected;
 	}
 
-	fun connectToFtp(hostname: String, port: Int = 1337, username: String = "", password: String = ""): Boolean {
+	/**
+	 * Makes [hostname]:[port] the current device and checks that a session to it can be opened.
+	 * This is where the UI changes devices: the address is stored in the settings, which
+	 * [devicePool] follows, and the session goes back to the pool for the operations that follow.
+	 */
+	fun connectToFtp(hostname: String, port: Int = 1337): Boolean {
 
 		if (hostname.isEmpty())
 			return false
 
-		if (isConnected() && isAuthenticated()) {
-			return true
-		}
-
-		try {
-			println("Connecting to $hostname:$port...")
-			val response: Array<String> = ftp.connect(hostname, port)
-			val msg = response.get(0)
-			println("Connected, welcome msg: $msg")
-		} catch (e: IOException) {
-			println("IOException: disconnecting")
-			ftp.disconnect(false)
-			setConnectionStatus(false, false)
-			return false
-		} catch (e: FTPException) {
-			println("FTPException: disconnecting")
-			ftp.disconnect(false)
-			setConnectionStatus(false, false)
-			return false
-		} catch (e: IllegalStateException) {
-			println("IllegalStateException: already connected")
-		}
-
-		if (!ftp.isConnected()) {
-			println("Connection failed for unknown reason")
-			ftp.abruptlyCloseCommunication()
-			setConnectionStatus(false, false)
-			return false
-		}
-
-		setConnectionStatus(true, false)
+		VitaOrganizerSettings.lastDeviceIp = hostname
+		VitaOrganizerSettings.lastDevicePort = port
 
 		try {
-			println("Authenticating with username=\'$username\' and password=\'$password\'...")
-			ftp.login(username, password)
-		} catch (e: IOException) {
-			println("IOException: I/O Error, disconnecting")
-			ftp.disconnect(true)
-			setConnectionStatus(false, false)
-			return false
-		} catch (e: FTPException) {
-			println("FTPException: Login failed, disconnecting with QUIT message")
-			ftp.disconnect(true)
-			setConnectionStatus(false, false)
-			return false
-		}
-
-		if (!ftp.isAuthenticated) {
-			println("Login failed, disconnecting with QUIT message")
-			ftp.disconnect(true)
+			devicePool().withSession { }
+		} catch (e: Throwable) {
+			println("Can't connect to $hostname:$port: $e")
 			setConnectionStatus(false, false)
 			return false
 		}
 
-		println("Authenticated")
 		setConnectionStatus(true, true)
-		ftp.setAutoNoopTimeout(30000)
 		return true
 	}
 
 	fun disconnectFromFtp(): Boolean {
-		try {
-			if (this.isConnected()) {
-				if (this.isAuthenticated()) {
-					ftp.abortCurrentDataTransfer(true)
-					ftp.setAutoNoopTimeout(0)
-					ftp.logout()
-					ftp.disconnect(true)
-				} else {
-					ftp.abortCurrentDataTransfer(false)
-					ftp.disconnect(true)
-				}
-			}
-		} catch (e: Throwable) {
+		closeDevicePool()
+		setConnectionStatus(false, false)
+		setTransferingData(false)
+		return isDisconnected()
+	}
 
-		} finally {
-			ftp.abortCurrentDataTransfer(false)
-			ftp.disconnect(false);
-			ftp.abruptlyCloseCommunication()
-			setConnectionStatus(false, false)
-			setTransferingData(false)
+	private var devicePool: FtpConnectionPool? = null
+
+	/**
+	 * Session pool for the device currently set in the settings. It is replaced (and the old one
+	 * closed) when the device address changes.
+	 */
+	fun devicePool(): FtpConnectionPool = synchronized(lock) {
+		val ip = VitaOrganizerSettings.lastDeviceIp
+		val port = VitaOrganizerSettings.lastDevicePort
+		val current = devicePool
+		if (current != null && current.host == ip && current.port == port) {
+			current
+		} else {
+			current?.close()
+			FtpConnectionPool(ip, port, VitaOrganizerSettings.ftpPoolSize).also { devicePool = it }
 		}
-
-		return isDisconnected()
 	}
 
-	fun getFtpClient(): FTPClient {
-		return ftp
+	fun closeDevicePool() {
+		synchronized(lock) {
+			devicePool?.close()
+			devicePool = null
+		}
 	}
 
 	fun deleteFile(remotePath: String): Boolean {
@@ -218,11 +141,8 @@ object ConnectionMgr {
 			return false
 		}
 
-		if (!connectToFtp(VitaOrganizerSettings.lastDeviceIp, VitaOrganizerSettings.lastDevicePort))
-			return false;
-
 		try {
-			getFtpClient().deleteFile(tmp)
+			devicePool().withSession { it.deleteFile(tmp) }
 		} catch (e: Throwable) {
 			println("Can't delete file $tmp")
 			return false;
@@ -235,19 +155,17 @@ object ConnectionMgr {
 		if (remotePath.isEmpty() || localPath.isEmpty())
 			return false
 
-		if (!connectToFtp(VitaOrganizerSettings.lastDeviceIp, VitaOrganizerSettings.lastDevicePort))
-			return false
-
 		var _remotePath = remotePath.replace("//", "/")
 		var _localPath = localPath.replace("//", "/")
 
-		val ftp = ConnectionMgr.getFtpClient();
+		val pool = devicePool()
 		try {
 			val localFile = File(localPath)
 			if (!localFile.exists())
 				localFile.mkdirs()
 
-			for (file in ftp.list(remotePath)) {
+			// The session is given back before recursing, so deep trees can't exhaust the pool
+			for (file in pool.withSession { it.list(remotePath) }) {
 				if (file.type == FTPFile.TYPE_DIRECTORY) {
 					println("[D] $_remotePath/${file.name}/")
 					val ret = downloadDirectory("$_remotePath/${file.name}", "$_localPath/${file.name}");
@@ -263,7 +181,7 @@ object ConnectionMgr {
 						return false
 					}
 					print("[F] $_remotePath/${file.name} -> ")
-					ftp.download("$_remotePath/${file.name}", f, object : FTPDataTransferListener {
+					pool.withSession { it.download("$_remotePath/${file.name}", f, object : FTPDataTransferListener {
 						override fun started() {
 							print("started...")
 						}
@@ -283,7 +201,7 @@ object ConnectionMgr {
 						override fun failed() {
 							print("failed!")
 						}
-					})
+					}) }
 					println("")
 				}
 			}
@@ -313,6 +231,8 @@ object ZipMgr {
 
 	private val multiplier = if (FileSize.base == 10) 1000 else 1024
 
+	private val NOTIFY_INTERVAL = 100L
+
 	data class ExtractStatus(
 		var extractedFiles: Int = 0,
 		var totalFiles: Int = 0,
@@ -326,6 +246,14 @@ object ZipMgr {
 			}
 	}
 
+	/**
+	 * Extracts [zipFile] into [directory] on [VitaOrganizerSettings.extractThreads] workers.
+	 *
+	 * Entries are handed out biggest compressed size first so one large file does not end up
+	 * alone at the end, output files are preallocated and written with positional channel writes,
+	 * and the CRC of every entry is checked. [notify] is called from the calling thread, at most
+	 * every [NOTIFY_INTERVAL] milliseconds and once more at the end.
+	 */
 	fun extractZip(zipFile: File, directory: File, notify: (ExtractStatus) -> Unit = {}): Boolean {
 
 		if (!directory.safe_isDirectory())
@@ -333,46 +261,92 @@ object ZipMgr {
 
 		val dirPath = directory.canonicalPath
 
-		val fis = FileInputStream(zipFile)
-
 		val status = ExtractStatus()
 
 		try {
-			ZipFile(zipFile).use { zip ->
-				val entries = zip.entries().toList().distinctBy { it.name }
+			RawZipReader(zipFile).use { zip ->
+				val entries = zip.entries.distinctBy { it.name }
 
 				status.totalFiles = entries.size
 				status.totalSize = entries.map { it.size }.sum()
 
 				notify(status)
 
-				for ((index, ze) in entries.withIndex()) {
-					val outputFile = File(dirPath + File.separator + ze.name)
-					println("Unzipping ${ze.name} to ${outputFile.canonicalPath}")
-
-					if (ze.name.endsWith('/')) {
-						outputFile.mkdirs()
-					} else {
-						outputFile.parentFile.mkdirs()
-						val startedSize = status.extractedSize
-						FileOutputStream(outputFile).use { fos ->
-							zip.getInputStream(ze).use { zis ->
-								zis.copyToReport(fos) { current, total, chunk ->
-									status.extractedSize = startedSize + current
-									notify(status)
-								}
+				fun outputFileOf(entry: RawZipReader.Entry) = File(dirPath + File.separator + entry.name)
+
+				// Create every directory up front so the workers never race on mkdirs
+				val (directories, files) = entries.partition { it.isDirectory }
+				for (ze in directories) outputFileOf(ze).mkdirs()
+				for (ze in files) outputFileOf(ze).parentFile.mkdirs()
+
+				val queue = ConcurrentLinkedQueue(files.sortedByDescending { it.compressedSize })
+				val extractedFiles = AtomicInteger(directories.size)
+				val extractedSize = AtomicLong(0L)
+				val failed = AtomicBoolean(false)
+
+				fun extractEntry(ze: RawZipReader.Entry) {
+					val crc = CRC32()
+					RandomAccessFile(outputFileOf(ze), "rw").use { raf ->
+						raf.setLength(ze.size)
+						val channel = raf.channel
+						zip.open(ze).use { zis ->
+							val temp = ByteArray(0x10000)
+							var position = 0L
+							while (true) {
+								val read = zis.read(temp)
+								if (read < 0) break
+								crc.update(temp, 0, read)
+								val buffer = ByteBuffer.wrap(temp, 0, read)
+								while (buffer.hasRemaining()) position += channel.write(buffer, position)
+								extractedSize.addAndGet(read.toLong())
 							}
+							if (position != ze.size) raf.setLength(position)
 						}
-						status.extractedSize = startedSize + ze.size
+					}
+					if (crc.value.toInt() != ze.crc) throw ZipException("CRC mismatch extracting ${ze.name}")
+					extractedFiles.incrementAndGet()
+				}
+
+				val threads = Math.max(1, Math.min(VitaOrganizerSettings.extractThreads, files.size))
+				val executor = newDaemonThreadPool("extract", threads)
+				try {
+					val futures = (0 until threads).map {
+						executor.submit(Callable<Unit> {
+							try {
+								while (!failed.get()) extractEntry(queue.poll() ?: break)
+							} catch (e: Throwable) {
+								failed.set(true)
+								throw e
+							}
+						})
+					}
+
+					fun report() {
+						status.extractedFiles = extractedFiles.get()
+						status.extractedSize = extractedSize.get()
+						notify(status)
 					}
 
-					status.extractedFiles = index + 1
-					notify(status)
+					for (future in futures) {
+						while (true) {
+							try {
+								future.get(NOTIFY_INTERVAL, TimeUnit.MILLISECONDS)
+								break
+							} catch (e: TimeoutException) {
+								report()
+							} catch (e: ExecutionException) {
+								throw e.cause ?: e
+							}
+						}
+					}
+					report()
+				} finally {
+					executor.shutdownNow()
 				}
+				println("Extracted ${status.extractedFiles} files from $zipFile to $dirPath")
 			}
 		} catch (e: Throwable) {
 			e.printStackTrace()
-			fis.close();
 			return false;
 		}
 
@@ -1,14 +1,24 @@
 package com.soywiz.vitaorganizer
 
+import com.soywiz.vitaorganizer.ext.newDaemonThreadPool
 import it.sauronsoftware.ftp4j.*
 import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
 import java.io.File
 import java.io.FileNotFoundException
 import java.io.IOException
+import java.io.InputStream
 import java.net.InetSocketAddress
-import java.net.NetworkInterface
 import java.net.Socket
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.atomic.AtomicReference
+import java.util.zip.ZipEntry
 import java.util.zip.ZipFile
 
 object PsvitaDevice {
@@ -23,118 +33,38 @@ object PsvitaDevice {
 		}
 	}
 
-	fun discoverIp(port: Int = 1337): List<String> {
-		val ips = NetworkInterface.getNetworkInterfaces().toList().flatMap { it.inetAddresses.toList() }
-		val ips2 = ips.map { it.hostAddress }.filter { it.startsWith("192.") }
-		val ipEnd = Regex("\\.(\\d+)$")
-		val availableIps = arrayListOf<String>()
-		var rest = 256
-		for (baseIp in ips2) {
-			for (n in 0 until 256) {
-				Thread {
-					val ip = baseIp.replace(ipEnd, "\\.$n")
-					if (checkAddress(ip, port)) {
-						availableIps += ip
-					}
-					rest--
-				}.start()
-			}
-		}
-		while (rest > 0) {
-			//println(rest)
-			Thread.sleep(20L)
-		}
-		//println(availableIps)
-		return availableIps
-	}
-
-	val ftp = FTPClient().apply {
-		type = FTPClient.TYPE_BINARY
-	}
-
-	fun setFtpPromoteTimeouts() {
-		//ftp.connector.setCloseTimeout(20)
-		//ftp.connector.setReadTimeout(240) // PROM could take a lot of time!
-		//ftp.connector.setConnectionTimeout(120)
-	}
+	fun discoverIp(port: Int = 1337, onFound: (String) -> Unit = { }): List<String> = LanDiscovery.discover(port, onFound = onFound)
 
-	fun resetFtpTimeouts() {
-		ftp.connector.setCloseTimeout(20)
-		ftp.connector.setReadTimeout(240) // PROM could take a lot of time!
-		ftp.connector.setConnectionTimeout(120)
+	private val pool: FtpConnectionPool get() = ConnectionMgr.devicePool()
 
-		//ftp.connector.setCloseTimeout(2)
-		//ftp.connector.setReadTimeout(2)
-		//ftp.connector.setConnectionTimeout(2)
-	}
-
-	init {
-		resetFtpTimeouts()
-	}
-
-	//init {
-	//ftp.sendCustomCommand()
-	//}
-
-	private fun connectedFtp(): FTPClient {
-		val ip = VitaOrganizerSettings.lastDeviceIp
-		val port = VitaOrganizerSettings.lastDevicePort
-
-
-
-		retries@ for (n in 0 until 5) {
-			if (!ftp.isConnected()) {
-				println("Connecting to ftp $ip:$port...")
-				ftp.connect(ip, port)
-				ftp.login("", "")
-				if (ftp.isConnected()) {
-					println("Connected")
-				} else {
-					println("Could not connect ($n)");
-					break@retries
-				}
-			}
-			try {
-				ftp.noop()
-				break@retries
-			} catch (e: IOException) {
-				ftp.disconnect(false)
-			}
-		}
-		return ftp
+	// Drops the cached listings of [path] after this program changed it on the device
+	private fun changed(path: String) {
+		RemoteTreeCrawler.invalidate(pool.let { "${it.host}:${it.port}" }, path)
+		RemoteTreeCrawler.flush()
 	}
 
 	fun disconnectFromFtp(): Boolean {
-		if (ftp.isConnected())
-			ftp.disconnect(false);
-
-		return !ftp.isConnected();
+		resetDirectoryCache()
+		ConnectionMgr.closeDevicePool()
+		return true
 	}
 
-	fun getGameIds() = connectedFtp().list("/ux0:/app").filter { i -> i.type == it.sauronsoftware.ftp4j.FTPFile.TYPE_DIRECTORY }.map { File(it.name).name }
+	fun getGameIds() = pool.withSession { it.list("/ux0:/app") }.filter { i -> i.type == FTPFile.TYPE_DIRECTORY }.map { File(it.name).name }
 
 	fun getGameFolder(id: String) = "/ux0:/app/${File(id).name}"
 
+	/**
+	 * Downloads [path] into memory. Returns an empty array if it does not exist or can't be read.
+	 */
 	fun downloadSmallFile(path: String): ByteArray {
+		val out = ByteArrayOutputStream()
 		try {
-			if (connectedFtp().fileSize(path) == 0L) {
-				return byteArrayOf()
-			}
-		} catch (e: Throwable) {
-			return byteArrayOf()
-		}
-
-		val file = File.createTempFile("vita", "download")
-		try {
-			connectedFtp().download(path, file)
-			return file.readBytes()
+			pool.withSession { it.download(path, out, 0L, null) }
+			return out.toByteArray()
 		} catch (e: FTPException) {
-			e.printStackTrace()
+			// Usually the file does not exist
 		} catch (e: Throwable) {
 			e.printStackTrace()
-		} finally {
-			//e.printStackTrace()
-			file.delete()
 		}
 		return byteArrayOf()
 	}
@@ -145,42 +75,78 @@ object PsvitaDevice {
 		return result
 	}
 
-	fun downloadEbootBin(id: String): ByteArray = downloadSmallFile("${getGameFolder(id)}/eboot.bin")
+	class RemoteGameMetadata(val id: String, val paramSfo: ByteArray, val icon0: ByteArray)
 
-	//fun getParamSfoCached(vpkFile: File): ByteArray {
-	//    val file = VitaOrganizerCache.entry(vpkFile).paramSfoFile
-	//    if (!file.exists()) file.writeBytes(getParamSfo(vpkFile))
-	//    return file.readBytes()
-	//}
-	//
-	//fun getGameIconCached(id: String): ByteArray {
-	//    val file = VitaOrganizerCache.entry(id).icon0File
-	//    if (!file.exists()) file.writeBytes(getGameIcon(id))
-	//    return file.readBytes()
-	//}
-
-	fun getFolderSize(path: String, folderSizeCache: HashMap<String, Long> = hashMapOf<String, Long>()): Long {
-		return folderSizeCache.getOrPut(path) {
-			var out = 0L
-			val ftp = connectedFtp()
-			try {
-				for (file in ftp.list(path)) {
-					//println("$path/${file.name}: ${file.size}")
-					if (file.type == FTPFile.TYPE_DIRECTORY) {
-						out += getFolderSize("$path/${file.name}", folderSizeCache)
-					} else {
-						out += file.size
-					}
+	/**
+	 * Downloads param.sfo and icon0.png of every game in [ids], several games at a time over the
+	 * pooled sessions. [onLoaded] is called from the download threads as soon as a game is done.
+	 */
+	fun getGamesMetadata(ids: List<String>, onLoaded: (RemoteGameMetadata) -> Unit = { }): List<RemoteGameMetadata> {
+		val executor = newDaemonThreadPool("metadata", pool.size)
+		try {
+			val futures = ids.map { id ->
+				executor.submit(Callable<RemoteGameMetadata> {
+					RemoteGameMetadata(id, getParamSfo(id), getGameIcon(id)).also { onLoaded(it) }
+				})
+			}
+			return futures.map {
+				try {
+					it.get()
+				} catch (e: ExecutionException) {
+					throw e.cause ?: e
 				}
-			} catch (e: Throwable) {
-				e.printStackTrace()
 			}
-			out
+		} finally {
+			executor.shutdownNow()
 		}
 	}
 
-	fun getGameSize(id: String, folderSizeCache: HashMap<String, Long> = hashMapOf<String, Long>()): Long {
-		return getFolderSize(getGameFolder(id), folderSizeCache)
+	fun downloadEbootBin(id: String): ByteArray = downloadSmallFile("${getGameFolder(id)}/eboot.bin")
+
+	// [metadataStamp] is made of the sizes and times of sce_sys/param.sfo and icon0.png, empty when the
+	// game has no param.sfo. Unlike the game folder's time it changes when those files are rewritten
+	class RemoteGame(val id: String, val size: Long, val files: Int, val metadataStamp: String)
+
+	fun getFolderSize(path: String): Long = folderTotals(path, RemoteTreeCrawler(pool).crawl(listOf(path))).size
+
+	fun getGameSize(id: String): Long = getFolderSize(getGameFolder(id))
+
+	/**
+	 * Id, size, file count and metadata stamp of every game installed in ux0:/app, from a single
+	 * crawl of the tree.
+	 */
+	fun getGameInventory(): List<RemoteGame> {
+		val appFolder = "/ux0:/app"
+		val listings = RemoteTreeCrawler(pool).crawl(listOf(appFolder))
+		val games = listings[appFolder]?.items ?: throw IOException("Can't list $appFolder")
+		return games.filter { it.isDirectory }.map { game ->
+			val totals = folderTotals(getGameFolder(game.name), listings)
+			val sceSys = listings["${getGameFolder(game.name)}/sce_sys"]?.items ?: listOf()
+			val paramSfo = sceSys.firstOrNull { it.name == "param.sfo" && !it.isDirectory }
+			val icon0 = sceSys.firstOrNull { it.name == "icon0.png" && !it.isDirectory }
+			val stamp = if (paramSfo != null) "${paramSfo.size}:${paramSfo.modified}/${icon0?.size}:${icon0?.modified}" else ""
+			RemoteGame(game.name, totals.size, totals.files, stamp)
+		}
+	}
+
+	private class FolderTotals(val size: Long, val files: Int)
+
+	private fun folderTotals(path: String, listings: Map<String, RemoteTreeCrawler.Listing>): FolderTotals {
+		var size = 0L
+		var files = 0
+		val pending = arrayListOf(path.trimEnd('/'))
+		while (pending.isNotEmpty()) {
+			val directory = pending.removeAt(pending.size - 1)
+			for (item in listings[directory]?.items ?: continue) {
+				if (item.isDirectory) {
+					pending += "$directory/${item.name}"
+				} else {
+					size += item.size
+					files++
+				}
+			}
+		}
+		return FolderTotals(size, files)
 	}
 
 	class Status() {
@@ -189,10 +155,12 @@ object PsvitaDevice {
 		var totalFiles: Int = 0
 		var currentSize: Long = 0L
 		var totalSize: Long = 0L
+		// Part of currentSize that was already on the device and not sent again
+		var skippedSize: Long = 0L
 		val elapsedTime: Int get() = (System.currentTimeMillis() - startTime).toInt()
 		val speed: Double
 			get() {
-				return if (elapsedTime == 0) 0.0 else currentSize.toDouble() / (elapsedTime.toDouble() / 1000.0)
+				return if (elapsedTime == 0) 0.0 else (currentSize - skippedSize).toDouble() / (elapsedTime.toDouble() / 1000.0)
 			}
 
 		val currentSizeString: String get() = FileSize.toString(currentSize)
@@ -204,19 +172,37 @@ object PsvitaDevice {
 		val sizeRange: String get() = "$currentSizeString/$totalSizeString"
 	}
 
-	val createDirectoryCache = hashSetOf<String>()
+	// Directories known to exist, only valid for the pool they were created through and while none of
+	// its sessions was lost, after that the device may have restarted or changed memory cards
+	private class DirectoryCache(val pool: FtpConnectionPool?, val lostSessions: Int) : HashSet<String>()
 
-	fun createDirectories(_path: String, createDirectoryCache: HashSet<String> = PsvitaDevice.createDirectoryCache) {
+	private var directoryCache = DirectoryCache(null, 0)
+
+	private fun directoryCache(): HashSet<String> {
+		val pool = pool
+		if (directoryCache.pool !== pool || directoryCache.lostSessions != pool.lostSessions) directoryCache = DirectoryCache(pool, pool.lostSessions)
+		return directoryCache
+	}
+
+	private fun resetDirectoryCache() {
+		directoryCache = DirectoryCache(null, 0)
+	}
+
+	fun createDirectories(_path: String, createDirectoryCache: HashSet<String> = directoryCache()) {
 		val path = _path.replace('\\', '/')
 		val parent = File(path).parent
 		if (parent != "" && parent != null) {
 			createDirectories(parent, createDirectoryCache)
 		}
+		createDirectory(path, createDirectoryCache)
+	}
+
+	private fun createDirectory(path: String, createDirectoryCache: HashSet<String>) {
 		if (path !in createDirectoryCache) {
 			println("[D] $path...")
 			createDirectoryCache.add(path)
 			try {
-				connectedFtp().createDirectory(path)
+				pool.withSession { it.createDirectory(path) }
 			} catch (e: IOException) {
 				throw e
 			} catch (e: FTPException) {
@@ -227,8 +213,63 @@ object PsvitaDevice {
 		}
 	}
 
-	fun uploadGame(id: String, zip: ZipFile, filter: (path: String) -> Boolean = { true }, updateStatus: (Status) -> Unit = { }) {
+	// Files at least this big are sent on their own session so they do not hold up the small ones
+	private val LARGE_FILE_SIZE = 1L * 1024 * 1024
+
+	/**
+	 * Cancels one [uploadGame] call from another thread. Its transfers in flight are aborted right
+	 * away and leave their [UploadJournal] records behind, so sending the game again continues where
+	 * they stopped. Other uploads running at the same time are not affected.
+	 */
+	class UploadCancellation {
+		@Volatile var isCancelled = false; private set
+		// Sessions of this upload currently sending a file
+		private val sessions: MutableSet<FTPClient> = Collections.newSetFromMap(ConcurrentHashMap<FTPClient, Boolean>())
+
+		fun cancel() {
+			isCancelled = true
+			for (session in sessions.toList()) abort(session)
+		}
+
+		internal fun sending(session: FTPClient) {
+			sessions += session
+			// A cancel that came before the session was added did not see it
+			if (isCancelled) abort(session)
+		}
+
+		internal fun sent(session: FTPClient) {
+			sessions -= session
+		}
+
+		private fun abort(session: FTPClient) {
+			try {
+				session.abortCurrentDataTransfer(true)
+			} catch (e: Throwable) {
+				e.printStackTrace()
+			}
+		}
+	}
+
+	/**
+	 * Uploads the entries of [zip] that pass [filter] into the game folder of [id].
+	 *
+	 * Directories come from [UploadPlan] and are created first, then the files are spread over
+	 * [VitaOrganizerSettings.uploadConnections] pooled sessions. The first session drains the large files
+	 * (biggest first) while the rest work through the small ones, and any session that runs out of
+	 * work helps with the other queue. Progress from every session is added into a single [Status].
+	 *
+	 * Every file is recorded in the [UploadJournal]. If an earlier upload of the same game did not
+	 * finish, files it completed are skipped and partial ones are continued from their remote size.
+	 * Cancelling [cancellation] stops the upload with a [CancellationException].
+	 *
+	 * With [skipUnchanged] files already on the device with the size of their entry, and not older
+	 * than it, are not sent again, so re-sending an updated game only transfers what changed. The
+	 * contents are not compared, so a file edited without changing its size is only sent again when
+	 * the entry is newer than the remote copy.
+	 */
+	fun uploadGame(id: String, zip: ZipFile, filter: (path: String) -> Boolean = { true }, skipUnchanged: Boolean = false, cancellation: UploadCancellation = UploadCancellation(), updateStatus: (Status) -> Unit = { }) {
 		val base = getGameFolder(id)
+		val device = pool.let { "${it.host}:${it.port}" }
 
 		val status = Status()
 
@@ -244,91 +285,237 @@ object PsvitaDevice {
 		status.currentSize = 0L
 		status.totalSize = filteredEntries.map { it.size }.sum()
 
-		for (entry in filteredEntries) {
-			val normalizedName = entry.name.replace('\\', '/')
-			val vname = "$base/$normalizedName"
-			val directory = File(vname).parent.replace('\\', '/')
-			val startSize = status.currentSize
-			if (!entry.isDirectory) {
-				createDirectories(directory)
+		val fileEntries = filteredEntries.filter { !it.isDirectory }
+		val createDirectoryCache = directoryCache()
+		val directories = UploadPlan.directories(base, filteredEntries.map { it.name })
+		for (directory in directories) {
+			createDirectory(directory, createDirectoryCache)
+		}
 
-				print("[F] $vname -> ")
-				try {
-					connectedFtp().upload(vname, zip.getInputStream(entry), 0L, 0L, object : FTPDataTransferListener {
-						override fun started() {
-							print("started...")
-						}
+		val remoteFiles = if (skipUnchanged || UploadJournal.hasEntries(device, base)) remoteFiles(base) else mapOf<String, RemoteTreeCrawler.Item>()
 
-						override fun completed() {
-							print("completed!")
-							updateStatus(status)
+		// Directory entries carry no data, count them right away
+		synchronized(status) {
+			status.currentFile += filteredEntries.size - fileEntries.size
+			updateStatus(status)
+		}
 
-							//untested
-							//if(status.currentSize != status.totalSize) {
-							//    println("$vname mismatch transfered size. $status.currentSize != $status.totalSize")
-							//
-						}
+		val (largeEntries, smallEntries) = fileEntries.partition { it.size >= LARGE_FILE_SIZE }
+		val largeQueue = ConcurrentLinkedQueue(largeEntries.sortedByDescending { it.size })
+		val smallQueue = ConcurrentLinkedQueue(smallEntries)
+		val sessionCount = Math.max(1, Math.min(Math.min(VitaOrganizerSettings.uploadConnections, VitaOrganizerSettings.ftpPoolSize), fileEntries.size))
+		val failure = AtomicReference<Throwable?>(null)
+
+		fun uploadEntries(ftp: FTPClient, first: Queue<ZipEntry>, second: Queue<ZipEntry>) {
+			while (failure.get() == null) {
+				if (cancellation.isCancelled) throw CancellationException("Upload of $id cancelled")
+				val entry = first.poll() ?: second.poll() ?: break
+				val vname = "$base/${entry.name.replace('\\', '/')}"
+				val source = "${entry.crc}:${entry.size}"
+				val remote = remoteFiles[vname]
+				val offset = UploadPlan.resumeOffset(entry.size, remote?.size, UploadJournal[device, vname], source, skipUnchanged, entry.time, remote?.modified ?: 0L)
+				if (offset == null) {
+					println("[F] $vname (already on the device)")
+					UploadJournal.completed(device, vname, source)
+					synchronized(status) {
+						status.currentSize += entry.size
+						status.skippedSize += entry.size
+						status.currentFile++
+						updateStatus(status)
+					}
+					continue
+				}
+				if (offset > 0L) {
+					println("[F] $vname (resuming at $offset)")
+					synchronized(status) {
+						status.currentSize += offset
+						status.skippedSize += offset
+						updateStatus(status)
+					}
+				} else {
+					println("[F] $vname")
+					UploadJournal.started(device, vname, source)
+				}
+				var transferred = offset
+				val listener = object : FTPDataTransferListener {
+					override fun started() {
+					}
 
-						override fun aborted() {
-							print("aborted!")
-						}
+					override fun completed() {
+					}
+
+					override fun aborted() {
+						println("$vname aborted!")
+					}
 
-						override fun transferred(size: Int) {
+					override fun transferred(size: Int) {
+						transferred += size
+						synchronized(status) {
 							status.currentSize += size
 							updateStatus(status)
 						}
+					}
 
-						override fun failed() {
-							print("failed!")
-						}
-					})
+					override fun failed() {
+						println("$vname failed!")
+					}
+				}
+				cancellation.sending(ftp)
+				try {
+					zip.getInputStream(entry).use { input -> uploadFrom(ftp, vname, input, offset, listener) }
 				} catch (e: FTPException) {
 					e.printStackTrace()
 					throw FileNotFoundException("Can't upload file $vname")
+				} catch (e: FTPAbortedException) {
+					throw CancellationException("Upload of $id cancelled")
+				} finally {
+					cancellation.sent(ftp)
+				}
+				UploadJournal.completed(device, vname, source)
+				synchronized(status) {
+					status.currentSize += entry.size - transferred
+					status.currentFile++
+					updateStatus(status)
 				}
-				println("")
 			}
-			status.currentSize = startSize + entry.size
-			status.currentFile++
-			updateStatus(status)
 		}
 
+		try {
+			if (sessionCount == 1) {
+				pool.withSession { uploadEntries(it, largeQueue, smallQueue) }
+			} else {
+				val executor = newDaemonThreadPool("upload", sessionCount)
+				try {
+					val futures = (0 until sessionCount).map { index ->
+						executor.submit {
+							try {
+								pool.withSession { session ->
+									if (index == 0) uploadEntries(session, largeQueue, smallQueue) else uploadEntries(session, smallQueue, largeQueue)
+								}
+							} catch (e: Throwable) {
+								failure.compareAndSet(null, e)
+							}
+						}
+					}
+					for (future in futures) future.get()
+				} finally {
+					executor.shutdownNow()
+				}
+				val error = failure.get()
+				if (error != null) throw error
+			}
+		} catch (e: Throwable) {
+			UploadJournal.sync()
+			throw e
+		} finally {
+			changed(base)
+		}
+
+		UploadJournal.finished(device, base)
 		println("DONE. Now package should be promoted!")
 	}
 
+	// Files below [base] by path, listed fresh with one LIST per directory spread over the pool
+	private fun remoteFiles(base: String): Map<String, RemoteTreeCrawler.Item> {
+		val files = hashMapOf<String, RemoteTreeCrawler.Item>()
+		// Listings kept from earlier crawls may predate a partial upload, sizes must be current here
+		changed(base)
+		val listings = try {
+			RemoteTreeCrawler(pool).crawl(listOf(base))
+		} catch (e: IOException) {
+			// Nothing known is on the device, so everything is sent from the start
+			e.printStackTrace()
+			return files
+		}
+		for ((directory, listing) in listings) {
+			for (item in listing.items) {
+				if (!item.isDirectory) files["$directory/${item.name}"] = item
+			}
+		}
+		return files
+	}
+
+	/**
+	 * Sends [input] to [path] starting at [offset] of both, with REST when the server supports it
+	 * and by appending to the remote file otherwise.
+	 */
+	fun uploadFrom(ftp: FTPClient, path: String, input: InputStream, offset: Long, listener: FTPDataTransferListener?) {
+		// Inflater streams may skip less than asked, so FTPClient's own stream offset is not used
+		skipFully(input, offset)
+		when {
+			offset == 0L -> ftp.upload(path, input, 0L, 0L, listener)
+			ftp.isResumeSupported -> ftp.upload(path, input, offset, 0L, listener)
+			else -> ftp.append(path, input, 0L, listener)
+		}
+	}
+
+	private fun skipFully(input: InputStream, count: Long) {
+		var remaining = count
+		while (remaining > 0L) {
+			val skipped = input.skip(remaining)
+			if (skipped <= 0L) {
+				if (input.read() < 0) throw EOFException("Stream ended $remaining bytes before the resume offset")
+				remaining--
+			} else {
+				remaining -= skipped
+			}
+		}
+	}
+
 	fun uploadFile(path: String, data: ByteArray, updateStatus: (Status) -> Unit = { }) {
+		uploadFile(path, ByteArrayInputStream(data), data.size.toLong(), updateStatus = updateStatus)
+	}
+
+	/**
+	 * Uploads everything read from [input] to [path]. [size] is only used to report progress, so
+	 * it may be an estimate when the data is produced while uploading.
+	 * Cancelling [cancellation] stops the upload with a [CancellationException].
+	 */
+	fun uploadFile(path: String, input: InputStream, size: Long, cancellation: UploadCancellation = UploadCancellation(), updateStatus: (Status) -> Unit = { }) {
+		if (cancellation.isCancelled) throw CancellationException("Upload of $path cancelled")
 		val status = Status()
 		createDirectories(File(path).parent)
 		status.startTime = System.currentTimeMillis()
 		status.currentFile = 0
 		status.totalFiles = 1
-		status.totalSize = data.size.toLong()
+		status.totalSize = size
 		updateStatus(status)
-		connectedFtp().upload(path, ByteArrayInputStream(data), 0L, 0L, object : FTPDataTransferListener {
-			override fun started() {
-			}
+		pool.withSession { ftp ->
+			cancellation.sending(ftp)
+			try {
+				ftp.upload(path, input, 0L, 0L, object : FTPDataTransferListener {
+					override fun started() {
+					}
 
-			override fun completed() {
-			}
+					override fun completed() {
+					}
 
-			override fun aborted() {
-			}
+					override fun aborted() {
+					}
 
-			override fun transferred(size: Int) {
-				status.currentSize += size
-				updateStatus(status)
-			}
+					override fun transferred(size: Int) {
+						status.currentSize += size
+						updateStatus(status)
+					}
 
-			override fun failed() {
+					override fun failed() {
+					}
+				})
+			} catch (e: FTPAbortedException) {
+				throw CancellationException("Upload of $path cancelled")
+			} finally {
+				cancellation.sent(ftp)
 			}
-		})
+		}
+		changed(File(path).parent)
 		status.currentFile++
 		updateStatus(status)
 	}
 
 	fun removeFile(path: String) {
 		try {
-			connectedFtp().deleteFile(path)
+			pool.withSession { it.deleteFile(path) }
+			changed(File(path).parent)
 		} catch (e: Throwable) {
 			println("Can't delete $path")
 			e.printStackTrace()
@@ -345,8 +532,7 @@ object PsvitaDevice {
 		println("Promoting: 'PROM $vpkPath'")
 
 		try {
-			resetFtpTimeouts()
-			val reply: FTPReply = connectedFtp().sendCustomCommand("PROM $vpkPath")
+			val reply: FTPReply = pool.withSession { it.sendCustomCommand("PROM $vpkPath") }
 
 			if (reply.getCode() == 502) {
 				println("PROM command is not supported by the server")
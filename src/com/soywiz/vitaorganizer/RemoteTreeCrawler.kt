@@ -0,0 +1,146 @@
+package com.soywiz.vitaorganizer
+
+import com.soywiz.util.KeyValueLog
+import com.soywiz.util.get
+import com.soywiz.vitaorganizer.ext.newDaemonThreadPool
+import it.sauronsoftware.ftp4j.FTPFile
+import java.io.*
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+
+/**
+ * Lists whole remote trees breadth first, one level at a time, spreading the LIST commands of a
+ * level over the sessions of a [FtpConnectionPool].
+ *
+ * Listings are kept in a log keyed by device and path together with the modification time the
+ * parent listing reported for the directory. A directory whose time did not change since it was
+ * last seen is not listed again for [MAX_AGE] ms; its subdirectories are still checked against their
+ * own times. Directory times do not change when a file is rewritten in place, so the age bounds how
+ * long such a change goes unseen, and [invalidate] drops what this program changed itself.
+ */
+class RemoteTreeCrawler(val pool: FtpConnectionPool) {
+	companion object {
+		val MAX_AGE = 15L * 60 * 1000
+		private val cache by lazy { KeyValueLog(VitaOrganizerFolders.CONFIG_ROOT["remote-listings.bin"]) }
+
+		/**
+		 * Forgets the listings of [path] on [device] and everything below it, so the next crawl lists
+		 * them again.
+		 */
+		fun invalidate(device: String, path: String) {
+			val key = "$device${path.replace('\\', '/').trimEnd('/')}"
+			for (cached in cache.keys.filter { it == key || it.startsWith("$key/") }) cache.remove(cached)
+		}
+
+		fun flush() {
+			try {
+				cache.sync()
+				cache.compactIfNeeded()
+			} catch (e: IOException) {
+				e.printStackTrace()
+			}
+		}
+	}
+
+	class Item(val name: String, val isDirectory: Boolean, val size: Long, val modified: Long)
+
+	// [listed] is when the device was asked for this listing
+	class Listing(val modified: Long, val listed: Long, val items: List<Item>) {
+		companion object {
+			private val VERSION = 2
+
+			fun read(data: ByteArray): Listing? {
+				val s = DataInputStream(ByteArrayInputStream(data))
+				if (s.readUnsignedByte() != VERSION) return null
+				val modified = s.readLong()
+				val listed = s.readLong()
+				val items = (0 until s.readInt()).map { Item(s.readUTF(), s.readBoolean(), s.readLong(), s.readLong()) }
+				return Listing(modified, listed, items)
+			}
+		}
+
+		fun toByteArray(): ByteArray {
+			val out = ByteArrayOutputStream()
+			DataOutputStream(out).use { s ->
+				s.writeByte(VERSION)
+				s.writeLong(modified)
+				s.writeLong(listed)
+				s.writeInt(items.size)
+				for (item in items) {
+					s.writeUTF(item.name)
+					s.writeBoolean(item.isDirectory)
+					s.writeLong(item.size)
+					s.writeLong(item.modified)
+				}
+			}
+			return out.toByteArray()
+		}
+	}
+
+	// A directory to list and the time its parent reported for it, 0 when unknown
+	private class Pending(val path: String, val modified: Long)
+
+	/**
+	 * Lists [roots] and everything below them. Returns the listing of every directory by path.
+	 *
+	 * A directory that can't be listed is taken from the cache, however old, when it was seen before.
+	 * Otherwise the crawl fails with an [IOException], so a subtree is never reported as empty only
+	 * because the device did not answer.
+	 */
+	fun crawl(roots: List<String>): Map<String, Listing> {
+		val out = hashMapOf<String, Listing>()
+		val device = "${pool.host}:${pool.port}"
+		val executor = newDaemonThreadPool("crawl", pool.size)
+		try {
+			var level = roots.map { Pending(it.trimEnd('/'), 0L) }
+			while (level.isNotEmpty()) {
+				val futures = level.map { pending -> executor.submit(Callable<Listing> { listing(device, pending) }) }
+				val next = arrayListOf<Pending>()
+				for ((pending, future) in level.zip(futures)) {
+					val listing = try {
+						future.get()
+					} catch (e: ExecutionException) {
+						throw e.cause ?: e
+					}
+					out[pending.path] = listing
+					for (item in listing.items) {
+						if (item.isDirectory) next += Pending("${pending.path}/${item.name}", item.modified)
+					}
+				}
+				level = next
+			}
+		} finally {
+			executor.shutdownNow()
+		}
+		flush()
+		return out
+	}
+
+	private fun listing(device: String, pending: Pending): Listing {
+		val key = "$device${pending.path}"
+		val cached = try {
+			cache[key]?.let { Listing.read(it) }
+		} catch (e: IOException) {
+			null
+		}
+		val now = System.currentTimeMillis()
+		if (cached != null && pending.modified != 0L && cached.modified == pending.modified && now - cached.listed in 0L until MAX_AGE) return cached
+		val files = try {
+			pool.withSession { it.list(pending.path) }
+		} catch (e: Throwable) {
+			if (cached != null) {
+				println("Can't list ${pending.path} ($e), using the listing from ${Date(cached.listed)}")
+				return cached
+			}
+			throw IOException("Can't list ${pending.path}", e)
+		}
+		val items = files.filter { it.name != "." && it.name != ".." }.map {
+			Item(it.name, it.type == FTPFile.TYPE_DIRECTORY, it.size, it.modifiedDate?.time ?: 0L)
+		}
+		val listing = Listing(pending.modified, now, items)
+		// Roots have no time from a parent, theirs is only used when listing them again fails
+		cache[key] = listing.toByteArray()
+		return listing
+	}
+}
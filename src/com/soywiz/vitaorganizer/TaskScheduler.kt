@@ -0,0 +1,134 @@
+package com.soywiz.vitaorganizer
+
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+enum class TaskPriority {
+	// Listing and metadata loads the user is looking at
+	INTERACTIVE,
+	NORMAL,
+	// Long transfers and repacks
+	BULK
+}
+
+/**
+ * Runs queued actions on [parallelism] worker threads, highest [TaskPriority] first and in
+ * submission order within a priority.
+ *
+ * Workers sleep on a condition until an action is queued or a delayed one becomes due, so an idle
+ * scheduler causes no wakeups. Actions sharing a serial key never run at the same time, the later
+ * ones wait for the earlier to finish even if other workers are free. An action may hold several
+ * keys (say the file it reads and the device it writes to) and waits until all of them are free.
+ */
+class TaskScheduler(val name: String, val parallelism: Int) {
+	inner class Handle internal constructor(
+		internal val priority: TaskPriority,
+		internal val due: Long,
+		internal val serialKeys: Collection<Any>,
+		internal val action: () -> Unit
+	) {
+		internal val sequence = nextSequence++
+
+		/**
+		 * Drops the action if it did not start yet. Returns false if it is already running or done.
+		 */
+		fun cancel(): Boolean = lock.withLock {
+			pending.remove(this).also { if (it) idle.signalAll() }
+		}
+	}
+
+	private val lock = ReentrantLock()
+	private val available = lock.newCondition()
+	private val idle = lock.newCondition()
+	private var nextSequence = 0L
+	private val pending = TreeSet<Handle>(Comparator { a, b ->
+		when {
+			a.priority != b.priority -> a.priority.compareTo(b.priority)
+			else -> a.sequence.compareTo(b.sequence)
+		}
+	})
+	private val runningKeys = hashSetOf<Any>()
+	private var active = 0
+	private val workers = arrayListOf<Thread>()
+
+	val running: Boolean get() = lock.withLock { active > 0 }
+
+	val hasPendingTasks: Boolean get() = lock.withLock { active > 0 || pending.isNotEmpty() }
+
+	init {
+		for (n in 0 until Math.max(1, parallelism)) {
+			workers += Thread({ work() }, "$name-${n + 1}").apply {
+				isDaemon = true
+				start()
+			}
+		}
+	}
+
+	fun submit(priority: TaskPriority = TaskPriority.NORMAL, delay: Long = 0L, serialKey: Any? = null, serialKeys: Collection<Any> = listOfNotNull(serialKey), action: () -> Unit): Handle = lock.withLock {
+		val handle = Handle(priority, System.currentTimeMillis() + delay, serialKeys.toSet(), action)
+		pending += handle
+		available.signalAll()
+		handle
+	}
+
+	/**
+	 * Drops every action that did not start yet.
+	 */
+	fun clear() {
+		lock.withLock {
+			pending.clear()
+			idle.signalAll()
+		}
+	}
+
+	/**
+	 * Blocks until nothing is queued or running. Returns right away when called from one of the
+	 * workers, which would otherwise wait for itself.
+	 */
+	fun waitCompleted() {
+		if (Thread.currentThread() in workers) return
+		lock.withLock {
+			while (active > 0 || pending.isNotEmpty()) idle.await()
+		}
+	}
+
+	private fun work() {
+		while (true) {
+			val handle = lock.withLock { takeNext() }
+			try {
+				handle.action()
+			} catch (t: Throwable) {
+				t.printStackTrace()
+			} finally {
+				lock.withLock {
+					active--
+					runningKeys.removeAll(handle.serialKeys)
+					available.signalAll()
+					idle.signalAll()
+				}
+			}
+		}
+	}
+
+	// Called with the lock held
+	private fun takeNext(): Handle {
+		while (true) {
+			val now = System.currentTimeMillis()
+			var nextDue = Long.MAX_VALUE
+			for (handle in pending) {
+				if (handle.serialKeys.any { it in runningKeys }) continue
+				if (handle.due > now) {
+					nextDue = Math.min(nextDue, handle.due)
+					continue
+				}
+				pending.remove(handle)
+				runningKeys.addAll(handle.serialKeys)
+				active++
+				return handle
+			}
+			if (nextDue == Long.MAX_VALUE) available.await() else available.await(nextDue - now, TimeUnit.MILLISECONDS)
+		}
+	}
+}
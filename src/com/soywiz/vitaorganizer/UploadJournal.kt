@@ -0,0 +1,74 @@
+package com.soywiz.vitaorganizer
+
+import com.soywiz.util.KeyValueLog
+import com.soywiz.util.get
+import java.io.*
+
+/**
+ * Remembers which files of an interrupted game upload already reached the device, so sending the
+ * game again can skip them and continue the partial ones.
+ *
+ * Records are keyed by device and remote path, and carry an identity of the local source (CRC and
+ * size of the zip entry) so a record never applies to a different version of the file.
+ */
+object UploadJournal {
+	private val log by lazy { KeyValueLog(VitaOrganizerFolders.CONFIG_ROOT["uploads.bin"]) }
+
+	/**
+	 * A file that was [completed], or started and maybe partially written. How much of a partial
+	 * file made it is not recorded here but taken from its remote size, which also counts whatever
+	 * the device wrote after the last progress notification.
+	 */
+	class Record(val source: String, val completed: Boolean) {
+		companion object {
+			fun read(data: ByteArray): Record {
+				val s = DataInputStream(ByteArrayInputStream(data))
+				return Record(s.readUTF(), s.readBoolean())
+			}
+		}
+
+		fun toByteArray(): ByteArray {
+			val out = ByteArrayOutputStream()
+			DataOutputStream(out).use { s ->
+				s.writeUTF(source)
+				s.writeBoolean(completed)
+			}
+			return out.toByteArray()
+		}
+	}
+
+	private fun key(device: String, path: String) = "$device$path"
+
+	operator fun get(device: String, path: String): Record? = try {
+		log[key(device, path)]?.let { Record.read(it) }
+	} catch (e: IOException) {
+		null
+	}
+
+	fun started(device: String, path: String, source: String) {
+		log[key(device, path)] = Record(source, false).toByteArray()
+	}
+
+	fun completed(device: String, path: String, source: String) {
+		log[key(device, path)] = Record(source, true).toByteArray()
+	}
+
+	fun hasEntries(device: String, base: String): Boolean = log.keys.any { it.startsWith(key(device, "$base/")) }
+
+	/**
+	 * Forgets every record below [base] once the whole game made it to the device.
+	 */
+	fun finished(device: String, base: String) {
+		for (key in log.keys.filter { it.startsWith(key(device, "$base/")) }) log.remove(key)
+		sync()
+	}
+
+	fun sync() {
+		try {
+			log.sync()
+			log.compactIfNeeded()
+		} catch (e: IOException) {
+			e.printStackTrace()
+		}
+	}
+}
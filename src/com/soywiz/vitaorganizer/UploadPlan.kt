@@ -0,0 +1,48 @@
+package com.soywiz.vitaorganizer
+
+/**
+ * Works out what has to exist on the device before the entries of a VPK can be stored under a
+ * game folder, so all the directories can be created up front instead of between the uploads.
+ */
+object UploadPlan {
+	/**
+	 * Returns [base] and every directory below it needed by [names] (zip entry names), each one once
+	 * and always after its parent.
+	 */
+	fun directories(base: String, names: Iterable<String>): List<String> {
+		val out = LinkedHashSet<String>()
+		val normalizedBase = base.replace('\\', '/').trimEnd('/')
+		out += normalizedBase
+		for (name in names) {
+			val parts = name.replace('\\', '/').split('/').filter { it.isNotEmpty() }
+			// The last component is a file unless the entry itself is a directory
+			val directoryParts = if (name.endsWith("/") || name.endsWith("\\")) parts.size else parts.size - 1
+			var path = normalizedBase
+			for (n in 0 until directoryParts) {
+				path += "/" + parts[n]
+				out += path
+			}
+		}
+		return out.toList()
+	}
+
+	/**
+	 * Where to continue an entry of [entrySize] bytes from, or null if it is already on the device.
+	 * [remoteSize] is the size of the remote file (null if missing), [record] what the journal knows
+	 * about it and [source] the identity of the entry being sent. [entryModified] and
+	 * [remoteModified] are only looked at without a record, 0 meaning unknown.
+	 */
+	fun resumeOffset(entrySize: Long, remoteSize: Long?, record: UploadJournal.Record?, source: String, skipUnchanged: Boolean, entryModified: Long = 0L, remoteModified: Long = 0L): Long? {
+		if (remoteSize == null) return 0L
+		// Without a record the remote file may be anything, it is only trusted whole and when it is not older than the entry
+		if (record == null) return if (skipUnchanged && remoteSize == entrySize && notOlder(remoteModified, entryModified)) null else 0L
+		if (record.source != source || remoteSize > entrySize) return 0L
+		if (remoteSize == entrySize) return null
+		// A completed file that is now shorter was changed on the device, continuing it could mix contents
+		return if (record.completed) 0L else remoteSize
+	}
+
+	// Listings only have minutes, so times are compared at that precision
+	private fun notOlder(remoteModified: Long, entryModified: Long): Boolean =
+		remoteModified > 0L && entryModified > 0L && remoteModified / 60000L >= entryModified / 60000L
+}
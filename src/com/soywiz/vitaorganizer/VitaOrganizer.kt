@@ -38,9 +38,9 @@ class VitaOrganizer : JPanel(BorderLayout()), StatusUpdater {
 	}
 
 	val vitaOrganizer = this@VitaOrganizer
-	val localTasks = VitaTaskQueue(this)
-	val remoteTasks = VitaTaskQueue(this)
-	val hotspotQueue = VitaTaskQueue(this)
+	val localTasks = VitaTaskQueue(this, "local-tasks", VitaOrganizerSettings.localTaskThreads)
+	val remoteTasks = VitaTaskQueue(this, "remote-tasks", VitaOrganizerSettings.remoteTaskThreads)
+	val hotspotQueue = VitaTaskQueue(this, "hotspot")
 
 	val runningTasks: Boolean get() = localTasks.running || remoteTasks.running || hotspotQueue.running
 
@@ -148,6 +148,18 @@ class VitaOrganizer : JPanel(BorderLayout()), StatusUpdater {
 				if (entry != null) remoteTasks.queue(OneStepToVitaTask(vitaOrganizer, entry!!.vpkLocalVpkFile!!))
 			}
 
+			val cancelSending = JMenuItem(Texts.format("CANCEL_SENDING_ACTION")).action {
+				val file = entry?.vpkLocalFile
+				if (file != null) remoteTasks.cancel {
+					when (it) {
+						is SendPromotingVpkToVitaTask -> it.vpkFile.vpkFile == file
+						is SendDataToVitaTask -> it.vpkFile.vpkFile == file
+						is OneStepToVitaTask -> it.vpkFile.vpkFile == file
+						else -> false
+					}
+				}
+			}
+
 			val repackVpk = JMenuItem(Texts.format("MENU_REPACK")).action {
 				if (entry != null) remoteTasks.queue(RepackVpkTask(vitaOrganizer, entry!!, setSecure = true))
 			}
@@ -206,7 +218,7 @@ class VitaOrganizer : JPanel(BorderLayout()), StatusUpdater {
 								}
 								val filepath = entry!!.vpkLocalFile
 								entry!!.entry.delete()
-								updateEntries()
+								removeEntry(entry!!.file)
 								updateStatus("$filepath was successfully deleted!")
 							} else {
 								MsgMgr.error("Could not delete ${entry!!.vpkLocalFile!!}!")
@@ -256,6 +268,7 @@ class VitaOrganizer : JPanel(BorderLayout()), StatusUpdater {
 				//	isEnabled = false
 				//})
 				add(sendToVita1Step)
+				add(cancelSending)
 			}
 
 			override fun show(invoker: Component?, x: Int, y: Int) {
@@ -385,6 +398,9 @@ class VitaOrganizer : JPanel(BorderLayout()), StatusUpdater {
 						}
 					}
 				)
+				add(JMenuItem(Texts.format("MENU_DEVICE_GAMES")).action {
+					remoteTasks.queue(ListDeviceGamesTask(this@VitaOrganizer))
+				})
 				add(JMenuItem(Texts.format("MENU_CREATE_VPK_FROM_MAIDUMP_FOLDER"), Icons.MAIDUMP).action {
 					val chooser = JFileChooser()
 					chooser.currentDirectory = File(VitaOrganizerSettings.vpkFolder)
@@ -458,6 +474,10 @@ class VitaOrganizer : JPanel(BorderLayout()), StatusUpdater {
 						updateFileList()
 					}
 				)
+				add(JCheckBoxMenuItem(Texts.format("MENU_SKIP_UNCHANGED_FILES")).apply {
+					isSelected = VitaOrganizerSettings.skipUnchangedFiles
+					addActionListener { VitaOrganizerSettings.skipUnchangedFiles = isSelected }
+				})
 				//add(JMenuItem(Texts.format("MENU_OPTIONS")).action {
 				//	frame.showDialog(SettingsDialog())
 				//})
@@ -506,26 +526,57 @@ class VitaOrganizer : JPanel(BorderLayout()), StatusUpdater {
 
 			//val connectText = Texts.format("CONNECT_TO_PSVITA")
 			var connected = false
+
+			// Goes through ConnectionMgr, which stores the address and switches the session pool to it
+			fun connectTo(ip: String) {
+				if (ip.isEmpty()) return
+				updateStatus(Texts.format("STEP_CONNECTING_TO_PSVITA", "ip" to ip))
+				remoteTasks.queue(TaskPriority.INTERACTIVE) {
+					val ok = ConnectionMgr.connectToFtp(ip, VitaOrganizerSettings.lastDevicePort)
+					SwingUtilities.invokeLater {
+						updateStatus(Texts.format(if (ok) "CONNECTED_TO_PSVITA" else "CANT_CONNECT_TO_PSVITA", "ip" to ip))
+					}
+				}
+			}
+
 			val connectAddress = object : JTextField(VitaOrganizerSettings.lastDeviceIp) {
 				init {
 					font = Font(Font.MONOSPACED, Font.PLAIN, 14)
 					columns = 17
 				}
-
-				override fun processKeyEvent(e: KeyEvent?) {
-					super.processKeyEvent(e)
-					VitaOrganizerSettings.lastDeviceIp = this.text
-				}
 			}.apply {
 				addActionListener {
-					println("aaa")
+					connectTo(text.trim())
 				}
+				addFocusListener(object : FocusAdapter() {
+					override fun focusLost(e: FocusEvent) {
+						if (text.trim() != VitaOrganizerSettings.lastDeviceIp) connectTo(text.trim())
+					}
+				})
 			}
 
 			//hotspotButton.icon
 
 			//add(connectButton)
 			add(connectAddress)
+			add(JButton(Texts.format("FIND_PSVITA_ACTION")).action {
+				updateStatus(Texts.format("STEP_FINDING_PSVITA"))
+				remoteTasks.queue(TaskPriority.INTERACTIVE) {
+					var first = true
+					val found = ConnectionMgr.discoverIp(VitaOrganizerSettings.lastDevicePort) { ip ->
+						SwingUtilities.invokeLater {
+							// The first device to answer is picked, later ones are only shown in the status bar
+							if (first) {
+								first = false
+								connectAddress.text = ip
+								connectTo(ip)
+							}
+							updateStatus(Texts.format("PSVITA_FOUND", "ip" to ip))
+						}
+					}
+					if (found.isEmpty()) SwingUtilities.invokeLater { updateStatus(Texts.format("PSVITA_NOT_FOUND")) }
+				}
+			})
 			add(JLabel(Texts.format("LABEL_FILTER")))
 			add(filterTextField)
 
@@ -654,17 +705,23 @@ class VitaOrganizer : JPanel(BorderLayout()), StatusUpdater {
 
 	fun updateFileList() {
 		localTasks.queue(UpdateFileListTask(vitaOrganizer))
+		watchVpkFolder()
 	}
 
-	//fun fileWatchFolder(path: String) {
-	//	val watcher = FileSystems.getDefault().newWatchService()
-	//	val dir = FileSystems.getDefault().getPath(path)
-	//	try {
-	//
-	//		val key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
-	//
-	//	} catch (x: IOException) {
-	//		System.err.println(x);
-	//	}
-	//}
+	private var libraryWatcher: LibraryWatcher? = null
+
+	/**
+	 * Keeps watching the VPK folder after a scan so later changes are picked up file by file.
+	 */
+	fun watchVpkFolder() {
+		val folder = File(VitaOrganizerSettings.vpkFolder)
+		if (libraryWatcher?.root == folder) return
+		libraryWatcher?.close()
+		libraryWatcher = LibraryWatcher(
+			folder,
+			UpdateFileListTask.MAX_SUBDIRECTORY_LEVELS,
+			onChanged = { paths -> localTasks.queue(RefreshVpkFilesTask(vitaOrganizer, paths)) },
+			onOverflow = { localTasks.queue(UpdateFileListTask(vitaOrganizer)) }
+		).apply { start() }
+	}
 }
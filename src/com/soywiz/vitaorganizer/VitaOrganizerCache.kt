@@ -1,11 +1,16 @@
 package com.soywiz.vitaorganizer
 
 import com.soywiz.util.Hash
+import com.soywiz.util.KeyValueLog
 import com.soywiz.util.get
 import com.soywiz.util.toHexString
 import com.soywiz.vitaorganizer.ext.safe_delete
 import com.soywiz.vitaorganizer.ext.safe_exists
-import java.io.File
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.InvalidPathException
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ConcurrentHashMap
 
 object VitaOrganizerCache {
 	val cacheFolder = File(VitaOrganizerFolders.CONFIG_ROOT, "cache")
@@ -14,15 +19,81 @@ object VitaOrganizerCache {
 		cacheFolder.mkdirs()
 	}
 
-	class Entry(val file: File) {
-		val path = Hash.sha1((file.canonicalPath + "@" + file.length()).toByteArray(Charsets.UTF_8)).toHexString()
-		val icon0File = cacheFolder["$path.icon0.png"]
-		val paramSfoFile = cacheFolder["$path.param.sfo"]
-		val pathFile = cacheFolder["$path.path"]
-		val sizeFile = cacheFolder["$path.size"]
-		val permissionsFile = cacheFolder["$path.extperm"]
-		val dumperVersionFile = cacheFolder["$path.dumperversion"]
-		val compressionFile = cacheFolder["$path.compression"]
+	// Small per-game records live apart from the icons so that preloading the list does not read every icon
+	private val records by lazy { KeyValueLog(cacheFolder["metadata.bin"]).apply { importLegacyFragments(this) } }
+	private val icons by lazy { KeyValueLog(cacheFolder["icons.bin"]) }
+	// Stat of every scanned VPK by absolute path, a file that did not change is not opened again
+	private val scanIndex by lazy { KeyValueLog(cacheFolder["scan-index.bin"]) }
+	// Cache key of every file validated or scanned in this session, so showing the list again needs no stat
+	private val knownKeys = ConcurrentHashMap<String, String>()
+	val iconAtlas by lazy { IconAtlas(cacheFolder["icons.atlas"]) }
+
+	class Record(
+		val path: String,
+		val size: Long,
+		val extendedPermissions: Boolean,
+		val dumperVersion: String,
+		val compression: String,
+		val paramSfo: ByteArray
+	) {
+		companion object {
+			private val VERSION = 1
+
+			fun read(data: ByteArray): Record? {
+				val s = DataInputStream(ByteArrayInputStream(data))
+				if (s.readUnsignedByte() != VERSION) return null
+				val path = s.readUTF()
+				val size = s.readLong()
+				val extendedPermissions = s.readBoolean()
+				val dumperVersion = s.readUTF()
+				val compression = s.readUTF()
+				val paramSfo = ByteArray(s.readInt())
+				s.readFully(paramSfo)
+				return Record(path, size, extendedPermissions, dumperVersion, compression, paramSfo)
+			}
+		}
+
+		fun toByteArray(): ByteArray {
+			val out = ByteArrayOutputStream()
+			DataOutputStream(out).use { s ->
+				s.writeByte(VERSION)
+				s.writeUTF(path)
+				s.writeLong(size)
+				s.writeBoolean(extendedPermissions)
+				s.writeUTF(dumperVersion)
+				s.writeUTF(compression)
+				s.writeInt(paramSfo.size)
+				s.write(paramSfo)
+			}
+			return out.toByteArray()
+		}
+	}
+
+	/**
+	 * What a scan learned about a VPK: its size and modification time then, the [Entry.path] of
+	 * its records and its title id.
+	 */
+	class ScanRecord(val size: Long, val modified: Long, val cacheKey: String, val gameId: String) {
+		companion object {
+			fun read(data: ByteArray): ScanRecord {
+				val s = DataInputStream(ByteArrayInputStream(data))
+				return ScanRecord(s.readLong(), s.readLong(), s.readUTF(), s.readUTF())
+			}
+		}
+
+		fun toByteArray(): ByteArray {
+			val out = ByteArrayOutputStream()
+			DataOutputStream(out).use { s ->
+				s.writeLong(size)
+				s.writeLong(modified)
+				s.writeUTF(cacheKey)
+				s.writeUTF(gameId)
+			}
+			return out.toByteArray()
+		}
+	}
+
+	class Entry(val file: File, val path: String) {
 
 		init {
 			try {
@@ -37,30 +108,171 @@ object VitaOrganizerCache {
 			}
 		}
 
+		val record: Record? get() = getRecord(path)
+
+		val hasIcon0: Boolean get() = path in icons
+
+		val icon0: ByteArray get() = icons[path] ?: byteArrayOf()
+
+		fun write(record: Record) {
+			records[path] = record.toByteArray()
+		}
+
+		fun writeIcon0(data: ByteArray) {
+			icons[path] = data
+		}
+
 		fun delete() {
-			icon0File.safe_delete()
-			paramSfoFile.safe_delete()
-			pathFile.safe_delete()
-			sizeFile.safe_delete()
-			permissionsFile.safe_delete()
-			dumperVersionFile.safe_delete()
-			compressionFile.safe_delete()
+			knownKeys.remove(file.absolutePath)
+			scanIndex.remove(file.absolutePath)
+			deleteRecords()
+		}
+
+		internal fun deleteRecords() {
+			ParsedVpkEntry.invalidate(path)
+			records.remove(path)
+			icons.remove(path)
+			iconAtlas.remove(path)
+		}
+	}
+
+	fun entry(file: File): Entry = Entry(file, knownKeys[file.absolutePath] ?: scanned(file)?.cacheKey ?: cacheKey(file))
+
+	/**
+	 * Key of the records of [file] as it is now. The modification time is part of it, so a VPK
+	 * rewritten with the same size does not find the records of its old content.
+	 */
+	fun cacheKey(file: File, stat: Pair<Long, Long>? = stat(file)): String {
+		val (size, modified) = stat ?: (file.length() to file.lastModified())
+		return Hash.sha1((file.canonicalPath + "@" + size + "@" + modified).toByteArray(Charsets.UTF_8)).toHexString()
+	}
+
+	// Size and modification time with a single stat, null if the file can't be read
+	fun stat(file: File): Pair<Long, Long>? = try {
+		val attributes = Files.readAttributes(file.toPath(), BasicFileAttributes::class.java)
+		attributes.size() to attributes.lastModifiedTime().toMillis()
+	} catch (e: IOException) {
+		null
+	} catch (e: InvalidPathException) {
+		null
+	}
+
+	/**
+	 * The scan record of [file] if it has not changed since it was scanned and its cached records
+	 * are still there, null otherwise.
+	 */
+	fun scanned(file: File): ScanRecord? {
+		val record = indexed(file)
+		val stat = stat(file)
+		if (record == null || stat == null || record.size != stat.first || record.modified != stat.second || record.cacheKey !in records) {
+			// The file changed, a key remembered for it no longer applies
+			knownKeys.remove(file.absolutePath)
+			return null
+		}
+		knownKeys[file.absolutePath] = record.cacheKey
+		return record
+	}
+
+	private fun indexed(file: File): ScanRecord? = try {
+		scanIndex[file.absolutePath]?.let { ScanRecord.read(it) }
+	} catch (e: IOException) {
+		null
+	}
+
+	/**
+	 * Stores the results of [VpkFile.scan], each log with a single write.
+	 */
+	fun write(batch: List<VpkFile.Scanned>) {
+		val fresh = batch.filter { !it.indexed }
+		if (fresh.isEmpty()) return
+		records.putAll(fresh.filter { it.record != null }.associate { it.entry.path to it.record!!.toByteArray() })
+		icons.putAll(fresh.filter { it.icon0 != null }.associate { it.entry.path to it.icon0!! })
+		// Indexed last, an index entry is only trusted when the records it points to exist
+		val index = linkedMapOf<String, ByteArray>()
+		for (scanned in fresh) {
+			// Records of what the file contained before are not reachable anymore
+			val previous = indexed(scanned.vpkFile)?.cacheKey
+			if (previous != null && previous != scanned.entry.path) Entry(scanned.vpkFile, previous).deleteRecords()
+			// The stat taken before the zip was read, a rewrite since then is caught by the next scan
+			index[scanned.vpkFile.absolutePath] = ScanRecord(scanned.size, scanned.modified, scanned.entry.path, scanned.gameId).toByteArray()
+		}
+		scanIndex.putAll(index)
+		for (scanned in fresh) {
+			knownKeys[scanned.vpkFile.absolutePath] = scanned.entry.path
+			if (scanned.record != null) ParsedVpkEntry.invalidate(scanned.entry.path)
 		}
 	}
 
-	fun entry(file: File) = Entry(file)
+	fun getRecord(key: String): Record? = try {
+		records[key]?.let { Record.read(it) }
+	} catch (e: IOException) {
+		e.printStackTrace()
+		null
+	}
+
+	val keys: List<String> get() = records.keys
+
+	/**
+	 * Persists what has been appended since the last call and compacts the logs once
+	 * they contain more stale records than live ones.
+	 */
+	fun flush() {
+		for (log in listOf(records, icons, scanIndex)) {
+			try {
+				log.sync()
+				log.compactIfNeeded()
+			} catch (e: IOException) {
+				e.printStackTrace()
+			}
+		}
+		iconAtlas.sync()
+	}
 
 	fun deleteAll() {
 		try {
-			if (cacheFolder.safe_exists()) {
-				cacheFolder.safe_delete();
-				cacheFolder.mkdirs();
+			records.clear()
+			icons.clear()
+			scanIndex.clear()
+			knownKeys.clear()
+			ParsedVpkEntry.clear()
+			// The atlas stays mapped, so it is emptied in place instead of deleted
+			iconAtlas.clear()
+			for (file in cacheFolder.listFiles() ?: arrayOf<File>()) {
+				if (file != records.file && file != icons.file && file != scanIndex.file && file != iconAtlas.file) file.safe_delete()
 			}
 		} catch (e: Throwable) {
 
 		}
 	}
 
+	// Older versions wrote seven small files per VPK, move them into the log once and remove them
+	private fun importLegacyFragments(records: KeyValueLog) {
+		val pathFiles = cacheFolder.listFiles(FileFilter { it.name.endsWith(".path") }) ?: return
+		if (pathFiles.isEmpty()) return
+		println("Importing ${pathFiles.size} legacy cache entries...")
+		for (pathFile in pathFiles) {
+			val key = pathFile.name.removeSuffix(".path")
+			val fragments = listOf("path", "size", "extperm", "dumperversion", "compression", "param.sfo", "icon0.png").map { cacheFolder["$key.$it"] }
+			try {
+				val (path, size, extperm, dumperVersion, compression) = fragments.take(5).map { if (it.safe_exists()) it.readText() else "" }
+				records[key] = Record(
+					path = path,
+					size = size.toLongOrNull() ?: 0L,
+					extendedPermissions = extperm.isEmpty() || extperm.toBoolean(),
+					dumperVersion = if (dumperVersion.isEmpty()) "UNKNOWN" else dumperVersion,
+					compression = compression,
+					paramSfo = fragments[5].readBytes()
+				).toByteArray()
+				if (fragments[6].safe_exists()) icons[key] = fragments[6].readBytes()
+			} catch (e: Throwable) {
+				println("Could not import legacy cache entry $key")
+			}
+			for (fragment in fragments) fragment.safe_delete()
+		}
+		records.sync()
+		icons.sync()
+	}
+
 	/*
 	fun setIcon0File(titleId: String, data: ByteArray) {
 		getIcon0File(titleId).writeBytes(data)
@@ -6,7 +6,9 @@ import java.io.File
 object VitaOrganizerFolders {
 	private val insideMacApp get() = File(".").canonicalPath.contains(".app/")
 
+	// The vitaorganizer.config system property moves everything elsewhere, tests use it to keep off the real folder
 	val CONFIG_ROOT: File = when {
+		System.getProperty("vitaorganizer.config") != null -> File(System.getProperty("vitaorganizer.config"))
 		OS.isMac && insideMacApp -> File(System.getenv("HOME") + "/Library/Application Support/vitaorganizer-1") // Format
 		else -> File("./vitaorganizer").canonicalFile
 	}.canonicalFile
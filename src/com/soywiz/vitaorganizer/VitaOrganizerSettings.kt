@@ -27,6 +27,22 @@ object VitaOrganizerSettings {
 	var lastVpkInstallFolder: String by PropDelegateStr { "." }
 	var lastDeviceIp: String by PropDelegateStr { "192.168.1.100" }
 	var lastDevicePort: Int by PropDelegateInt { 1337 }
+	// Scanning is mostly waiting on disk (or a NAS), so allow some more workers than cores
+	var scanThreads: Int by PropDelegateInt { Math.min(Runtime.getRuntime().availableProcessors() * 2, 16) }
+	// Workers of the local (disk and CPU) and remote (device) task queues
+	var localTaskThreads: Int by PropDelegateInt { 2 }
+	var remoteTaskThreads: Int by PropDelegateInt { 2 }
+	// Deflate workers used when packing a folder into a VPK
+	var packThreads: Int by PropDelegateInt { Runtime.getRuntime().availableProcessors() }
+	// Extraction is mostly bound by the target media, a few workers are enough to keep it busy
+	var extractThreads: Int by PropDelegateInt { Math.min(Runtime.getRuntime().availableProcessors(), 4) }
+	// Sessions kept open to the device, shared by every task
+	var ftpPoolSize: Int by PropDelegateInt { 4 }
+	// Parallel FTP sessions used when sending game data, 1 sends everything over the shared connection
+	var uploadConnections: Int by PropDelegateInt { 4 }
+	// Only send game data files that are missing on the device, differ in size or are older than the
+	// VPK entry. Toggled from the settings menu
+	var skipUnchangedFiles: Boolean by PropDelegateBool { false }
 	var LANGUAGE: String by PropDelegateStr { "auto" }
 	var WLAN_SSID: String by PropDelegateStr {
 		"VORG-" + SecureRandom().nextString(HEX_DIGITS, 4)
@@ -89,6 +105,23 @@ object VitaOrganizerSettings {
 		}
 	}
 
+	private class PropDelegateBool(val default: () -> Boolean) {
+		operator fun getValue(thisRef: Any?, property: KProperty<*>): Boolean {
+			val props = ensureProperties()
+			val key = property.name
+			if (props.getProperty(key) == null) {
+				props.setProperty(key, "" + default())
+				writeProperties()
+			}
+			return props.getProperty(key).trim().toBoolean()
+		}
+
+		operator fun setValue(thisRef: Any?, property: KProperty<*>, value: Boolean) {
+			VitaOrganizerSettings.ensureProperties().setProperty(property.name, "$value")
+			VitaOrganizerSettings.writePropertiesAsync()
+		}
+	}
+
 	private class PropDelegateLong(val default: () -> Long) {
 		operator fun getValue(thisRef: Any?, property: KProperty<*>): Long {
 			val props = ensureProperties()
@@ -2,48 +2,48 @@ package com.soywiz.vitaorganizer
 
 import com.soywiz.vitaorganizer.tasks.VitaTask
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
-class VitaTaskQueue(val vitaOrganizer: VitaOrganizer) {
-	var running = false; private set
-	private val tasks: Queue<() -> Unit> = LinkedList<() -> Unit>()
-	val thread = Thread {
-		while (vitaOrganizer.isVisible) {
-			Thread.sleep(10L)
-			val task = synchronized(tasks) { if (tasks.isNotEmpty()) tasks.remove() else null }
-			if (task != null) {
+class VitaTaskQueue(val vitaOrganizer: VitaOrganizer, name: String, parallelism: Int = 1) {
+	private val scheduler = TaskScheduler(name, parallelism)
+	// Tasks queued or running, so they can be found again to cancel them
+	private val tasks: MutableSet<VitaTask> = Collections.newSetFromMap(ConcurrentHashMap<VitaTask, Boolean>())
+
+	val running: Boolean get() = scheduler.running
+
+	fun queue(task: VitaTask) {
+		try {
+			task.checkBeforeQueue()
+			tasks += task
+			task.handle = scheduler.submit(task.priority, serialKeys = task.serialKeys) {
 				try {
-					running = true
-					task()
-				} catch (t: Throwable) {
-					t.printStackTrace()
+					task.run()
 				} finally {
-					running = false
+					tasks -= task
 				}
 			}
+		} catch (t: Throwable) {
+			t.printStackTrace()
 		}
-	}.apply {
-		isDaemon = true
-		start()
 	}
 
-	fun queue(task: VitaTask) {
-		try {
-			task.checkBeforeQueue()
-			synchronized(tasks) {
-				tasks += { task.perform() }
+	/**
+	 * Cancels the queued and running tasks accepted by [filter].
+	 */
+	fun cancel(filter: (VitaTask) -> Boolean) {
+		for (task in tasks.toList()) {
+			if (filter(task)) {
+				task.cancel()
+				tasks -= task
 			}
-		} catch (t: Throwable) {
-			t.printStackTrace()
 		}
 	}
 
-	fun queue(task: () -> Unit) {
+	fun queue(priority: TaskPriority = TaskPriority.NORMAL, task: () -> Unit) {
 		try {
-			synchronized(tasks) {
-				tasks += task
-			}
+			scheduler.submit(priority, action = task)
 		} catch (t: Throwable) {
 			t.printStackTrace()
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,55 @@
+package com.soywiz.vitaorganizer
+
+import java.io.File
+import java.io.IOException
+import java.nio.file.DirectoryIteratorException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveAction
+
+/**
+ * Finds the VPK files below a folder, listing every subfolder as its own fork/join task so slow
+ * (network) folders are read in parallel.
+ *
+ * Files are told from folders through their attributes, which Windows returns together with the
+ * directory listing, so no File is created per entry and network shares get no extra call. Matches
+ * are reported to [onFound] from the walking threads as soon as they are seen, before the walk ends.
+ */
+object VpkDiscovery {
+	/**
+	 * Starts walking [root] and up to [maxDepth] levels of subfolders on [pool]. The returned task
+	 * completes when every folder has been listed.
+	 */
+	fun walk(root: File, maxDepth: Int, pool: ForkJoinPool, onFound: (File) -> Unit): ForkJoinTask<Void> =
+		pool.submit(ListFolder(root.toPath(), 0, maxDepth, onFound))
+
+	private class ListFolder(val folder: Path, val depth: Int, val maxDepth: Int, val onFound: (File) -> Unit) : RecursiveAction() {
+		override fun compute() {
+			val subfolders = arrayListOf<ListFolder>()
+			try {
+				Files.newDirectoryStream(folder).use { stream ->
+					for (child in stream) {
+						val attributes = try {
+							Files.readAttributes(child, BasicFileAttributes::class.java)
+						} catch (e: IOException) {
+							continue
+						}
+						if (attributes.isDirectory) {
+							if (depth < maxDepth) subfolders += ListFolder(child, depth + 1, maxDepth, onFound)
+						} else if (child.fileName.toString().endsWith(".vpk", ignoreCase = true)) {
+							onFound(child.toFile())
+						}
+					}
+				}
+			} catch (e: IOException) {
+				println("Can't list $folder: $e")
+			} catch (e: DirectoryIteratorException) {
+				println("Can't list $folder: ${e.cause}")
+			}
+			invokeAll(subfolders)
+		}
+	}
+}
@@ -1,9 +1,6 @@
 package com.soywiz.vitaorganizer
 
 import com.soywiz.util.open2
-import com.soywiz.vitaorganizer.ext.getBytes
-import com.soywiz.vitaorganizer.ext.getInputStream
-import com.soywiz.vitaorganizer.ext.safe_exists
 import java.io.File
 import java.util.zip.ZipException
 import java.util.zip.ZipFile
@@ -11,11 +8,11 @@ import java.util.zip.ZipFile
 class VpkFile(val vpkFile: File) {
 	//val entry: GameEntry by lazy { VpkFile() }
 
+	val metadata: VpkMetadata by lazy { VpkMetadata.read(vpkFile) }
+
 	val paramSfoData: ByteArray by lazy {
 		try {
-			ZipFile(vpkFile).use { zip ->
-				zip.getBytes("sce_sys/param.sfo")
-			}
+			metadata.paramSfo
 		} catch (e: Throwable) {
 			byteArrayOf()
 		}
@@ -33,71 +30,79 @@ class VpkFile(val vpkFile: File) {
 	val title by lazy { psf["TITLE"].toString() }
 	val hasExtendedPermissions: Boolean by lazy {
 		try {
-			ZipFile(vpkFile).use { zip ->
-				val stream = zip.getInputStream("eboot.bin")
-				val ret = EbootBin.hasExtendedPermissions(stream)
-				stream.close()
-				ret
-			}
+			metadata.hasExtendedPermissions
 		} catch (e: Throwable) {
 			true
 		}
 	}
 
-	fun cacheAndGetGameId(): String? {
-		var retGameId: String? = null
+	/**
+	 * What [scan] learned about a VPK. [record] and [icon0] are what still has to be written to the
+	 * cache, null when it already has them; [indexed] is set when the file did not change since
+	 * the last scan and was not opened at all. [size] and [modified] are the stat of the file taken
+	 * before it was read.
+	 */
+	class Scanned(
+		val vpkFile: File,
+		val size: Long,
+		val modified: Long,
+		val gameId: String,
+		val entry: VitaOrganizerCache.Entry,
+		val record: VitaOrganizerCache.Record?,
+		val icon0: ByteArray?,
+		val indexed: Boolean
+	)
+
+	/**
+	 * Reads what the cache needs from the VPK without writing anything, so the caller can store
+	 * many results at once with [VitaOrganizerCache.write]. Returns null if it can't be read.
+	 */
+	fun scan(): Scanned? {
+		// Unchanged since the last scan, the records are already there
+		VitaOrganizerCache.scanned(vpkFile)?.let {
+			return Scanned(vpkFile, it.size, it.modified, it.gameId, VitaOrganizerCache.Entry(vpkFile, it.cacheKey), null, null, indexed = true)
+		}
+
+		val stat = VitaOrganizerCache.stat(vpkFile) ?: return null
+
 		try {
-			ZipFile(vpkFile).use { zip ->
-				val psf = psf
-				val zipEntries = zip.entries()
-				val gameId = psf["TITLE_ID"].toString()
-				retGameId = gameId
-
-				val entry = VitaOrganizerCache.entry(vpkFile)
-
-				//try to find compressionlevel and vitaminversion or maiversion
-				val paramsfo = zip.getEntry("sce_sys/param.sfo")
-				val compressionLevel = paramsfo?.method?.toString() ?: ""
-
-				var dumper = DumperNamesHelper().findDumperByShortName(if (psf["ATTRIBUTE"].toString().toInt() == 0x8000) "HB" else "UNKNOWN")
-				if (dumper == DumperNames.UNKNOWN) {
-					for (file in DumperModules.values()) {
-						val suprx = zip.getEntry(file.file)
-						if (suprx != null) {
-							dumper = DumperNamesHelper().findDumperBySize(suprx.size)
-						}
-					}
-				}
+			val metadata = metadata
+			val psf = psf
+			val gameId = psf["TITLE_ID"].toString()
 
-				println("Processing [$vpkFile]")
-				entry.pathFile.writeBytes(vpkFile.absolutePath.toByteArray(Charsets.UTF_8))
-				if (!entry.compressionFile.safe_exists()) {
-					entry.compressionFile.writeText(compressionLevel.toString())
-				}
-				if (!entry.dumperVersionFile.safe_exists()) {
-					entry.dumperVersionFile.writeText(dumper.shortName)
-				}
+			// Not through VitaOrganizerCache.entry, which may still know the key of the old content
+			val entry = VitaOrganizerCache.Entry(vpkFile, VitaOrganizerCache.cacheKey(vpkFile, stat))
 
-				if (!entry.icon0File.safe_exists()) {
-					if (zip.getEntry("sce_sys/icon0.png") != null)
-						entry.icon0File.writeBytes(zip.getBytes("sce_sys/icon0.png"))
-					else
-						entry.icon0File.writeBytes(byteArrayOf())
-				}
-				if (!entry.paramSfoFile.safe_exists()) {
-					entry.paramSfoFile.writeBytes(paramSfoData)
-				}
-				if (!entry.sizeFile.safe_exists()) {
-					val uncompressedSize = zipEntries.toList().map { it.size }.sum()
-					entry.sizeFile.writeText("" + uncompressedSize)
-				}
-				if (!entry.permissionsFile.safe_exists()) {
-					val ebootBinStream = zip.getInputStream("eboot.bin")
-					entry.permissionsFile.writeText("" + EbootBin.hasExtendedPermissions(ebootBinStream))
-					ebootBinStream.close()
+			//try to find compressionlevel and vitaminversion or maiversion
+			val compressionLevel = metadata.compression
+
+			var dumper = DumperNamesHelper().findDumperByShortName(if (psf["ATTRIBUTE"].toString().toInt() == 0x8000) "HB" else "UNKNOWN")
+			if (dumper == DumperNames.UNKNOWN) {
+				for (file in DumperModules.values()) {
+					val suprxSize = metadata.dumperModuleSizes[file.file]
+					if (suprxSize != null) {
+						dumper = DumperNamesHelper().findDumperBySize(suprxSize)
+					}
 				}
-				//getGameEntryById(gameId).inPC = true
 			}
+
+			println("Processing [$vpkFile]")
+			val path = vpkFile.absolutePath
+			val record = if (entry.record?.path != path) {
+				VitaOrganizerCache.Record(
+					path = path,
+					size = metadata.uncompressedSize,
+					extendedPermissions = metadata.hasExtendedPermissions,
+					dumperVersion = dumper.shortName,
+					compression = compressionLevel,
+					paramSfo = metadata.paramSfo
+				)
+			} else {
+				null
+			}
+			val icon0 = if (!entry.hasIcon0) metadata.icon0 else null
+			return Scanned(vpkFile, stat.first, stat.second, gameId, entry, record, icon0, indexed = false)
+			//getGameEntryById(gameId).inPC = true
 		} catch (e: ZipException) {
 			if (e.message!!.contains("error in opening zip file"))
 				println("Skipped: Could not open ${vpkFile.name}")
@@ -109,8 +114,53 @@ class VpkFile(val vpkFile: File) {
 			println("Skipped: Error processing ${vpkFile.name}")
 			e.printStackTrace()
 		}
-		return retGameId
+		return null
 	}
 
+	fun cacheAndGetGameId(): String? {
+		val scanned = scan() ?: return null
+		VitaOrganizerCache.write(listOf(scanned))
+		return scanned.gameId
+	}
+}
+
+/**
+ * Everything the organizer needs from a VPK, gathered while the archive is opened once and
+ * its central directory walked once.
+ */
+class VpkMetadata(
+	val paramSfo: ByteArray,
+	val icon0: ByteArray,
+	val hasExtendedPermissions: Boolean,
+	val compression: String,
+	val dumperModuleSizes: Map<String, Long>,
+	val uncompressedSize: Long
+) {
+	companion object {
+		private val DUMPER_MODULE_FILES = DumperModules.values().map { it.file }.toSet()
 
+		fun read(vpkFile: File): VpkMetadata = ZipFile(vpkFile).use { zip ->
+			var paramSfo = byteArrayOf()
+			var icon0 = byteArrayOf()
+			var hasExtendedPermissions = true
+			var compression = ""
+			val dumperModuleSizes = hashMapOf<String, Long>()
+			var uncompressedSize = 0L
+
+			for (entry in zip.entries()) {
+				uncompressedSize += entry.size
+				when (entry.name) {
+					"sce_sys/param.sfo" -> {
+						paramSfo = zip.getInputStream(entry).use { it.readBytes() }
+						compression = entry.method.toString()
+					}
+					"sce_sys/icon0.png" -> icon0 = zip.getInputStream(entry).use { it.readBytes() }
+					"eboot.bin" -> hasExtendedPermissions = zip.getInputStream(entry).use { EbootBin.hasExtendedPermissions(it) }
+					in DUMPER_MODULE_FILES -> dumperModuleSizes[entry.name] = entry.size
+				}
+			}
+
+			VpkMetadata(paramSfo, icon0, hasExtendedPermissions, compression, dumperModuleSizes, uncompressedSize)
+		}
+	}
 }
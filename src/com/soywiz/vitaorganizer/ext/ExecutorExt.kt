@@ -0,0 +1,15 @@
+package com.soywiz.vitaorganizer.ext
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+fun newDaemonThreadPool(name: String, threads: Int): ExecutorService {
+	val counter = AtomicInteger(0)
+	return Executors.newFixedThreadPool(Math.max(1, threads), ThreadFactory { runnable ->
+		Thread(runnable, "$name-${counter.incrementAndGet()}").apply {
+			isDaemon = true
+		}
+	})
+}
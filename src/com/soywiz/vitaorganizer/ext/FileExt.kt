@@ -1,6 +1,9 @@
 package com.soywiz.vitaorganizer.ext
 
 import java.io.File
+import java.nio.file.*
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.*
 
 fun File.listdirRecursively(): List<File> {
 	val out = arrayListOf<File>()
@@ -8,13 +11,20 @@ fun File.listdirRecursively(): List<File> {
 	return out
 }
 
+// Folders are reported before their contents
 fun File.listdirRecursively(emit: (file: File) -> Unit) {
-	for (child in this.listFiles()) {
-		emit(child)
-		if (child.isDirectory) {
-			child.listdirRecursively(emit)
+	val root = this.toPath()
+	Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Int.MAX_VALUE, object : SimpleFileVisitor<Path>() {
+		override fun preVisitDirectory(dir: Path, attrs: BasicFileAttributes): FileVisitResult {
+			if (dir != root) emit(dir.toFile())
+			return FileVisitResult.CONTINUE
 		}
-	}
+
+		override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+			emit(file.toFile())
+			return FileVisitResult.CONTINUE
+		}
+	})
 }
 
 fun File.safe_exists(): Boolean {
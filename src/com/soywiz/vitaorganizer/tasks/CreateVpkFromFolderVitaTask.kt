@@ -1,5 +1,6 @@
 package com.soywiz.vitaorganizer.tasks
 
+import com.soywiz.vitaorganizer.TaskPriority
 import com.soywiz.util.get
 import com.soywiz.util.invalidOp
 import com.soywiz.vitaorganizer.FileSize
@@ -8,6 +9,8 @@ import java.io.File
 import java.util.zip.Deflater
 
 class CreateVpkFromFolderVitaTask(vitaOrganizer: VitaOrganizer, val folder: File, val outVpk: File, val level: Int = Deflater.BEST_COMPRESSION) : VitaTask(vitaOrganizer) {
+	override val priority: TaskPriority get() = TaskPriority.BULK
+
 	override fun checkBeforeQueue() {
 		if (!folder["eboot.bin"].exists()) invalidOp("eboot.bin doesn't exists")
 		if (!folder["sce_sys/param.sfo"].exists()) invalidOp("sce_sys/param.sfo doesn't exists")
@@ -1,5 +1,6 @@
 package com.soywiz.vitaorganizer.tasks
 
+import com.soywiz.vitaorganizer.TaskPriority
 import com.soywiz.vitaorganizer.CachedVpkEntry
 import com.soywiz.vitaorganizer.VitaOrganizer
 import com.soywiz.vitaorganizer.VitaOrganizerSettings
@@ -13,6 +14,8 @@ import java.io.File
  */
 
 class ExtractVpkToUMS(vitaOrganizer: VitaOrganizer, val entry: CachedVpkEntry) : VitaTask(vitaOrganizer) {
+	override val priority: TaskPriority get() = TaskPriority.BULK
+
 	override fun perform() {
 		if (!extract())
 			error("Could not extract VPK to directory!")
@@ -0,0 +1,46 @@
+package com.soywiz.vitaorganizer.tasks
+
+import com.soywiz.util.stream
+import com.soywiz.vitaorganizer.*
+import com.soywiz.vitaorganizer.ext.showFrame
+import com.soywiz.vitaorganizer.popups.KeyValueViewerFrame
+import java.util.concurrent.atomic.AtomicInteger
+import javax.swing.SwingUtilities
+
+/**
+ * Shows the games installed on the current device. Games whose param.sfo and icon did not change
+ * since the last time come from the [DeviceInventory], so only new or updated ones are downloaded.
+ * When the device can't be reached the games recorded the last time are shown instead.
+ */
+class ListDeviceGamesTask(vitaOrganizer: VitaOrganizer) : VitaTask(vitaOrganizer) {
+	override val priority: TaskPriority get() = TaskPriority.INTERACTIVE
+
+	override fun perform() {
+		val device = "${VitaOrganizerSettings.lastDeviceIp}:${VitaOrganizerSettings.lastDevicePort}"
+		status(Texts.format("STEP_LISTING_DEVICE_GAMES", "device" to device))
+		val downloaded = AtomicInteger()
+		val games = try {
+			DeviceInventory.refresh { game ->
+				status(Texts.format("STEP_LISTING_DEVICE_GAMES_ITEM", "device" to device, "id" to game.id, "count" to downloaded.incrementAndGet()))
+			}
+		} catch (e: Throwable) {
+			e.printStackTrace()
+			status("Can't list the games on $device ($e), showing the ones seen the last time")
+			DeviceInventory.games(device)
+		}
+
+		val rows = linkedMapOf<String, Any>()
+		for (game in games.sortedBy { it.id }) {
+			val title = try {
+				PSF.read(game.paramSfo.stream)["TITLE"]?.toString()
+			} catch (e: Throwable) {
+				null
+			}
+			rows[game.id] = "${title ?: Texts.format("TYPE_UNKNOWN")} (${FileSize(game.size)}, ${game.files} files)"
+		}
+		status(Texts.format("STEP_DONE"))
+		SwingUtilities.invokeLater {
+			vitaOrganizer.frame.showFrame(KeyValueViewerFrame(Texts.format("DEVICE_GAMES_TITLE", "device" to device), rows))
+		}
+	}
+}
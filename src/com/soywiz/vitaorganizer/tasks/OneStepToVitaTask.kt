@@ -1,11 +1,16 @@
 package com.soywiz.vitaorganizer.tasks
 
+import com.soywiz.vitaorganizer.TaskPriority
 import com.soywiz.vitaorganizer.PsvitaDevice
 import com.soywiz.vitaorganizer.Texts
 import com.soywiz.vitaorganizer.VitaOrganizer
 import com.soywiz.vitaorganizer.VpkFile
 
 class OneStepToVitaTask(vitaOrganizer: VitaOrganizer, val vpkFile: VpkFile) : VitaTask(vitaOrganizer) {
+	override val priority: TaskPriority get() = TaskPriority.BULK
+
+	override val serialKeys: Collection<Any> get() = listOf(fileKey(vpkFile.vpkFile), deviceKey)
+
 	val sendPromotingVpkTask = SendPromotingVpkToVitaTask(vitaOrganizer, vpkFile)
 	val sendDataTask = SendDataToVitaTask(vitaOrganizer, vpkFile)
 
@@ -14,13 +19,21 @@ class OneStepToVitaTask(vitaOrganizer: VitaOrganizer, val vpkFile: VpkFile) : Vi
 		sendDataTask.checkBeforeQueue()
 	}
 
+	override fun cancel() {
+		super.cancel()
+		sendPromotingVpkTask.cancel()
+		sendDataTask.cancel()
+	}
+
 	override fun perform() {
 		if (!sendPromotingVpkTask.performBase()) {
+			if (isCancelled) return
 			println("Uploading promoting VPK failed!")
 			status("Uploading promoting VPK failed! Task aborted!")
 			return
 		}
 
+		if (isCancelled) return
 		status(Texts.format("PROMOTING_VPK"))
 		if (!PsvitaDevice.promoteVpk(sendPromotingVpkTask.vpkPath)) {
 			status("Promoting failed! Task aborted!")
@@ -30,7 +43,7 @@ class OneStepToVitaTask(vitaOrganizer: VitaOrganizer, val vpkFile: VpkFile) : Vi
 
 		if (sendDataTask.performBase())
 			info(Texts.format("GAME_SENT_SUCCESSFULLY", "id" to vpkFile.id))
-		else
+		else if (!isCancelled)
 			status("Failed to send data from ${vpkFile.id}")
 	}
 }
\ No newline at end of file
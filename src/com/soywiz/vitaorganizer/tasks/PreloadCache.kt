@@ -1,18 +1,21 @@
 package com.soywiz.vitaorganizer.tasks
 
+import com.soywiz.vitaorganizer.TaskPriority
 import com.soywiz.vitaorganizer.VitaOrganizer
 import com.soywiz.vitaorganizer.VitaOrganizerCache
-import com.soywiz.vitaorganizer.ext.listAllFiles
 import com.soywiz.vitaorganizer.ext.safe_exists
 import java.io.File
 
 class PreloadCache(vitaOrganizer: VitaOrganizer) : VitaTask(vitaOrganizer) {
+	override val priority: TaskPriority get() = TaskPriority.INTERACTIVE
+	override val serialKey: Any? get() = UpdateFileListTask.SERIAL_KEY
+
 	override fun perform() {
 		//preload cached files
 		if (VitaOrganizerCache.cacheFolder.safe_exists()) {
-			val cachedPaths = VitaOrganizerCache.cacheFolder.listAllFiles("path")
-			for (path in cachedPaths) {
-				val file = File(path.readText())
+			for (key in VitaOrganizerCache.keys) {
+				val record = VitaOrganizerCache.getRecord(key) ?: continue
+				val file = File(record.path)
 				if (!file.safe_exists())
 					continue
 
@@ -0,0 +1,56 @@
+package com.soywiz.vitaorganizer.tasks
+
+import com.soywiz.vitaorganizer.*
+import java.io.File
+
+/**
+ * Brings the list up to date for a few [paths] reported by the [LibraryWatcher]: VPKs that exist
+ * are indexed again and deleted paths, files or whole folders, are dropped from the list.
+ */
+class RefreshVpkFilesTask(vitaOrganizer: VitaOrganizer, val paths: Set<File>) : VitaTask(vitaOrganizer) {
+	companion object {
+		/**
+		 * The files of [known] that [paths] no longer exist for: deleted files, and the files below
+		 * deleted folders.
+		 */
+		fun removedFiles(paths: Collection<File>, known: Collection<File>): List<File> {
+			val out = arrayListOf<File>()
+			for (path in paths.map { it.absoluteFile }) {
+				if (path.exists()) continue
+				val prefix = path.path + File.separator
+				out += known.map { it.absoluteFile }.filter { it == path || it.path.startsWith(prefix) }
+			}
+			return out
+		}
+	}
+
+	override val priority: TaskPriority get() = TaskPriority.INTERACTIVE
+	override val serialKey: Any? get() = UpdateFileListTask.SERIAL_KEY
+
+	override fun perform() {
+		val added = arrayListOf<File>()
+		val removed = arrayListOf<File>()
+		for (path in paths.map { it.absoluteFile }) {
+			if (path.isFile && LibraryWatcher.isVpk(path)) {
+				val vpkFile = try {
+					UpdateFileListTask.scanVpkFile(path)
+				} catch (e: Throwable) {
+					e.printStackTrace()
+					null
+				}
+				if (vpkFile != null) added += vpkFile else removed += path
+			}
+		}
+		removed += removedFiles(paths, synchronized(vitaOrganizer.VPK_GAME_FILES) { vitaOrganizer.VPK_GAME_FILES.toList() })
+
+		synchronized(vitaOrganizer.VPK_GAME_FILES) {
+			vitaOrganizer.VPK_GAME_FILES.removeAll { it.absoluteFile in removed }
+			vitaOrganizer.VPK_GAME_FILES += added
+		}
+		VitaOrganizerCache.flush()
+
+		for (file in removed) vitaOrganizer.table.removeEntry(file)
+		if (added.isNotEmpty()) vitaOrganizer.table.addEntries(added.map { CachedVpkEntry(it) })
+		if (added.isNotEmpty() || removed.isNotEmpty()) status(Texts.format("STEP_DONE"))
+	}
+}
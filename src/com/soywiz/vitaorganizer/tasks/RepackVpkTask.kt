@@ -1,14 +1,23 @@
 package com.soywiz.vitaorganizer.tasks
 
+import com.soywiz.util.RawZipReader
+import com.soywiz.util.RawZipWriter
 import com.soywiz.vitaorganizer.*
+import java.io.BufferedOutputStream
 import java.io.File
 import java.io.FileOutputStream
+import java.util.*
 import java.util.zip.Deflater
-import java.util.zip.ZipEntry
-import java.util.zip.ZipFile
-import java.util.zip.ZipOutputStream
 
-class RepackVpkTask(vitaOrganizer: VitaOrganizer, val entry: CachedVpkEntry, val compression: Int = Deflater.BEST_COMPRESSION, val setSecure: Boolean? = null) : VitaTask(vitaOrganizer) {
+/**
+ * Rewrites a VPK. Unless [recompress] is set, entries are copied still compressed and only the
+ * eboot.bin is re-encoded, and only when [setSecure] actually changes it.
+ */
+class RepackVpkTask(vitaOrganizer: VitaOrganizer, val entry: CachedVpkEntry, val compression: Int = Deflater.BEST_COMPRESSION, val setSecure: Boolean? = null, val recompress: Boolean = setSecure == null) : VitaTask(vitaOrganizer) {
+	override val priority: TaskPriority get() = TaskPriority.BULK
+
+	override val serialKey: Any? get() = fileKey(entry.vpkLocalFile ?: entry.file)
+
 	override fun perform() {
 		status(Texts.format("STEP_REPACKING_VPK"))
 		val file = entry.vpkLocalFile!!
@@ -20,40 +29,46 @@ class RepackVpkTask(vitaOrganizer: VitaOrganizer, val entry: CachedVpkEntry, val
 
 		val multiplier = if (FileSize.base == 10) 1000 else 1024
 
-		val temp = ByteArray(10 * multiplier * multiplier)
+		val temp = ByteArray(0x10000)
 
-		ZipFile(file).use { zip ->
-			FileOutputStream(tempFile).use { out ->
-				ZipOutputStream(out).use { zout ->
-					zout.setLevel(compression)
-					val entries = zip.entries().toList().distinctBy { it.name }
-					var currentSize = 0L
-					val totalSize = entries.map { it.size }.sum()
+		RawZipReader(file).use { zip ->
+			RawZipWriter(BufferedOutputStream(FileOutputStream(tempFile), 0x10000)).use { zout ->
+				val entries = zip.entries.distinctBy { it.name }
+				var currentSize = 0L
+				val totalSize = entries.map { it.size }.sum()
 
-					for ((index, e) in entries.withIndex()) {
-						fun updateStatus() {
-							status(Texts.format(
-								"STEP_REPACKING_ENTRY",
-								"current" to (index + 1), "total" to entries.size,
-								"currentSize" to FileSize.toString(currentSize), "totalSize" to FileSize.toString(totalSize)
-							))
-							progress(index, entries.size)
-						}
+				for ((index, e) in entries.withIndex()) {
+					if (isCancelled) break
+					fun updateStatus() {
+						status(Texts.format(
+							"STEP_REPACKING_ENTRY",
+							"current" to (index + 1), "total" to entries.size,
+							"currentSize" to FileSize.toString(currentSize), "totalSize" to FileSize.toString(totalSize)
+						))
+						progress(index, entries.size)
+					}
 
-						updateStatus()
-						zout.putNextEntry(ZipEntry(e.name))
-						if (e.name == "eboot.bin" && setSecure != null) {
-							val full = zip.getInputStream(e).readBytes()
-							EbootBin.setSecureInplace(full, setSecure)
-							zout.write(full)
-							currentSize += full.size
+					updateStatus()
+					if (e.name == "eboot.bin" && setSecure != null) {
+						val original = zip.open(e).use { it.readBytes() }
+						val full = EbootBin.setSecureInplace(original.copyOf(), setSecure)
+						if (recompress || !Arrays.equals(original, full)) {
+							zout.putNextEntry(e.name, compression, e.dosTime, full.size.toLong()).use { it.write(full) }
 						} else {
-							zip.getInputStream(e).use {
+							zout.copyRaw(zip, e)
+						}
+						currentSize += full.size
+					} else if (!recompress) {
+						zout.copyRaw(zip, e)
+						currentSize += e.size
+					} else {
+						zout.putNextEntry(e.name, compression, e.dosTime, e.size).use { out ->
+							zip.open(e).use {
 								var localSize = 0L
-								while (it.available() > 0) {
+								while (true) {
 									val bytes = it.read(temp)
-									if (bytes <= 0) break
-									zout.write(temp, 0, bytes)
+									if (bytes < 0) break
+									out.write(temp, 0, bytes)
 									currentSize += bytes
 									localSize += bytes
 									if (localSize >= 1 * multiplier * multiplier) {
@@ -62,14 +77,17 @@ class RepackVpkTask(vitaOrganizer: VitaOrganizer, val entry: CachedVpkEntry, val
 									}
 								}
 							}
-							updateStatus()
 						}
-
-						zout.closeEntry()
 					}
+					updateStatus()
 				}
 			}
 		}
+		if (isCancelled) {
+			tempFile.delete()
+			status("Repacking ${entry.gameId} cancelled")
+			return
+		}
 		status(Texts.format("STEP_DONE"))
 
 		//Thread.sleep(300L)
@@ -80,6 +98,9 @@ class RepackVpkTask(vitaOrganizer: VitaOrganizer, val entry: CachedVpkEntry, val
 		println(tempFile2.delete())
 		println(entry.entry.delete()) // flush this info!
 
-		vitaOrganizer.updateFileList()
+		// Only this VPK changed, so reindex it and update its row instead of rescanning the folder
+		VpkFile(file).cacheAndGetGameId()
+		VitaOrganizerCache.flush()
+		vitaOrganizer.table.addEntries(listOf(CachedVpkEntry(entry.file)))
 	}
 }
@@ -1,21 +1,31 @@
 package com.soywiz.vitaorganizer.tasks
 
 import com.soywiz.vitaorganizer.*
+import java.util.concurrent.CancellationException
 import java.util.zip.ZipFile
 
 class SendDataToVitaTask(vitaOrganizer: VitaOrganizer, val vpkFile: VpkFile) : VitaTask(vitaOrganizer) {
+	override val priority: TaskPriority get() = TaskPriority.BULK
+
+	override val serialKeys: Collection<Any> get() = listOf(fileKey(vpkFile.vpkFile), deviceKey)
+
+	private val cancellation = PsvitaDevice.UploadCancellation()
+
 	fun performBase(): Boolean {
 
 		status(Texts.format("STEP_SENDING_GAME", "id" to vpkFile.id))
 		//val zip = ZipFile(entry.vpkFile)
 		try {
 			ZipFile(vpkFile.vpkFile).use { zip ->
-				PsvitaDevice.uploadGame(vpkFile.id, zip, filter = { path -> FileRules.includeInData(path) }) { status ->
+				PsvitaDevice.uploadGame(vpkFile.id, zip, filter = { path -> FileRules.includeInData(path) }, skipUnchanged = VitaOrganizerSettings.skipUnchangedFiles, cancellation = cancellation) { status ->
 					//println("$status")
 					status(Texts.format("STEP_SENDING_GAME_UPLOADING", "id" to vpkFile.id, "fileRange" to status.fileRange, "sizeRange" to status.sizeRange, "speed" to status.speedString))
 				}
 			}
 			//statusLabel.text = "Processing game ${vitaGameCount + 1}/${vitaGameIds.size} ($gameId)..."
+		} catch (e: CancellationException) {
+			status("Sending ${vpkFile.id} cancelled, sending it again will resume")
+			return false
 		} catch (e: Throwable) {
 			error(e.toString())
 			return false;
@@ -24,10 +34,15 @@ class SendDataToVitaTask(vitaOrganizer: VitaOrganizer, val vpkFile: VpkFile) : V
 		return true;
 	}
 
+	override fun cancel() {
+		super.cancel()
+		cancellation.cancel()
+	}
+
 	override fun perform() {
 		if (performBase())
 			status(Texts.format("GAME_SENT_SUCCESSFULLY", "id" to vpkFile.id))
-		else
+		else if (!isCancelled)
 			status("Failed to send ${vpkFile.id}")
 	}
 }
\ No newline at end of file
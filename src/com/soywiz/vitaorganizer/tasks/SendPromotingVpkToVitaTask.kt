@@ -1,15 +1,26 @@
 package com.soywiz.vitaorganizer.tasks
 
+import com.soywiz.vitaorganizer.TaskPriority
+import com.soywiz.util.RawZipReader
 import com.soywiz.vitaorganizer.PsvitaDevice
 import com.soywiz.vitaorganizer.Texts
 import com.soywiz.vitaorganizer.VitaOrganizer
 import com.soywiz.vitaorganizer.VpkFile
-import java.util.zip.ZipFile
+import java.io.PipedInputStream
+import java.io.PipedOutputStream
+import java.util.concurrent.CancellationException
+import java.util.concurrent.atomic.AtomicReference
 import javax.swing.JOptionPane
 
 class SendPromotingVpkToVitaTask(vitaOrganizer: VitaOrganizer, val vpkFile: VpkFile) : VitaTask(vitaOrganizer) {
+	override val priority: TaskPriority get() = TaskPriority.BULK
+
+	override val serialKeys: Collection<Any> get() = listOf(fileKey(vpkFile.vpkFile), deviceKey)
+
 	val vpkPath = "ux0:/organizer/${vpkFile.id}.VPK"
 
+	private val cancellation = PsvitaDevice.UploadCancellation()
+
 	override fun checkBeforeQueue() {
 		//updateStatus(Texts.format("STEP_CHECKING_EBOOT_PERMISSIONS"))
 		if (vpkFile.hasExtendedPermissions) {
@@ -27,14 +38,42 @@ class SendPromotingVpkToVitaTask(vitaOrganizer: VitaOrganizer, val vpkFile: VpkF
 
 		//val zip = ZipFile(entry.vpkFile)
 		try {
-			val vpkData = ZipFile(vpkFile.vpkFile).use { zip -> createSmallVpk(zip) }
+			RawZipReader(vpkFile.vpkFile).use { zip ->
+				// The small VPK is generated while it is being uploaded, through a pipe
+				val input = PipedInputStream(0x10000)
+				val output = PipedOutputStream(input)
+				val producerError = AtomicReference<Throwable?>(null)
+				val producer = Thread({
+					try {
+						createSmallVpk(zip, output)
+					} catch (e: Throwable) {
+						producerError.set(e)
+						output.close()
+					}
+				}, "small-vpk")
+				producer.isDaemon = true
+				producer.start()
 
-			status(Texts.format("STEP_GENERATED_SMALL_VPK_FOR_PROMOTING"))
+				status(Texts.format("STEP_GENERATED_SMALL_VPK_FOR_PROMOTING"))
 
-			PsvitaDevice.uploadFile("/$vpkPath", vpkData) { status ->
-				progress(status.currentSize, status.totalSize)
-				status(Texts.format("STEP_UPLOADING_VPK_FOR_PROMOTING", "current" to status.currentSizeString, "total" to status.totalSizeString, "speed" to status.speedString))
+				try {
+					PsvitaDevice.uploadFile("/$vpkPath", input, smallVpkSize(zip), cancellation) { status ->
+						progress(status.currentSize, status.totalSize)
+						status(Texts.format("STEP_UPLOADING_VPK_FOR_PROMOTING", "current" to status.currentSizeString, "total" to status.totalSizeString, "speed" to status.speedString))
+					}
+				} finally {
+					// Unblocks the producer if the upload stopped reading early
+					input.close()
+					producer.join()
+				}
+				val error = producerError.get()
+				if (error != null) throw error
 			}
+		} catch (e: CancellationException) {
+			// A partial VPK is of no use to VitaShell
+			PsvitaDevice.removeFile("/$vpkPath")
+			status("Sending ${vpkFile.id} cancelled")
+			return false
 		} catch (e: Throwable) {
 			e.printStackTrace()
 			JOptionPane.showMessageDialog(vitaOrganizer, "${e.toString()}", "${e.message}", JOptionPane.ERROR_MESSAGE);
@@ -43,11 +82,16 @@ class SendPromotingVpkToVitaTask(vitaOrganizer: VitaOrganizer, val vpkFile: VpkF
 		return true
 	}
 
+	override fun cancel() {
+		super.cancel()
+		cancellation.cancel()
+	}
+
 	override fun perform() {
 		if (performBase()) {
 			status(Texts.format("GAME_SENT_SUCCESSFULLY", "id" to vpkFile.id))
 			info(Texts.format("VITASHELL_INSTALL", "vpkPath" to vpkPath))
-		} else {
+		} else if (!isCancelled) {
 			status("Failed to send ${vpkFile.id}")
 		}
 	}
@@ -1,10 +1,53 @@
 package com.soywiz.vitaorganizer.tasks
 
 import com.soywiz.vitaorganizer.*
+import com.soywiz.vitaorganizer.ext.newDaemonThreadPool
 import com.soywiz.vitaorganizer.ext.safe_exists
 import java.io.File
+import java.util.concurrent.*
 
 class UpdateFileListTask(vitaOrganizer: VitaOrganizer) : VitaTask(vitaOrganizer) {
+	companion object {
+		// The preload and the scans all replace the list, they must not interleave
+		val SERIAL_KEY = "file-list"
+
+		// How deep below the VPK folder games are looked for
+		val MAX_SUBDIRECTORY_LEVELS = 2
+
+		// Scanned files held between the workers and the list, the walk waits when it is full
+		private val MAX_IN_FLIGHT = 64
+		// Results are stored and shown at least this often, or every BATCH_SIZE files
+		private val BATCH_INTERVAL = 250L
+		private val BATCH_SIZE = 64
+
+		/**
+		 * Reads [vpkFile] for the cache without storing it. Returns null if it is not a valid game.
+		 */
+		fun scan(vpkFile: File): VpkFile.Scanned? {
+			val scanned = VpkFile(vpkFile).scan() ?: return null
+			if (scanned.gameId.length != 9) {
+				//gameId has to be a length of 9 characters or it will not be installable
+				//either fix gameId automatically or skip
+				println("Skipped ${vpkFile.canonicalPath} because of malformed TITLE_ID: ${scanned.gameId}")
+				VitaOrganizerCache.entry(vpkFile).delete()
+				return null
+			}
+			return scanned
+		}
+
+		/**
+		 * Indexes [vpkFile] into the cache. Returns it if it is a valid game, null otherwise.
+		 */
+		fun scanVpkFile(vpkFile: File): File? {
+			val scanned = scan(vpkFile) ?: return null
+			VitaOrganizerCache.write(listOf(scanned))
+			return vpkFile
+		}
+	}
+
+	override val priority: TaskPriority get() = TaskPriority.INTERACTIVE
+	override val serialKey: Any? get() = SERIAL_KEY
+
 	override fun perform() {
 		synchronized(vitaOrganizer.VPK_GAME_FILES) {
 			vitaOrganizer.VPK_GAME_FILES.clear()
@@ -21,45 +64,68 @@ class UpdateFileListTask(vitaOrganizer: VitaOrganizer) : VitaTask(vitaOrganizer)
 		}
 		status(Texts.format("STEP_ANALYZING_FILES", "folder" to VitaOrganizerSettings.vpkFolder))
 
-		val MAX_SUBDIRECTORY_LEVELS = 2
+		// Stages: the walk finds files, the workers read them, and this thread stores and shows them in batches
+		val foundFiles = arrayListOf<File>()
+		val batch = arrayListOf<VpkFile.Scanned>()
+		var lastBatch = System.currentTimeMillis()
 
-		fun listVpkFiles(folder: File, level: Int = 0): List<File> {
-			val out = arrayListOf<File>()
-			if (level > MAX_SUBDIRECTORY_LEVELS) return out
-			for (child in folder.listFiles()) {
-				if (child.isDirectory) {
-					out += listVpkFiles(child, level = level + 1)
-				} else {
-					if (child.extension.toLowerCase() == "vpk") out += child
-				}
+		fun flushBatch() {
+			lastBatch = System.currentTimeMillis()
+			if (batch.isEmpty()) return
+			VitaOrganizerCache.write(batch)
+			val files = batch.map { it.vpkFile }
+			synchronized(vitaOrganizer.VPK_GAME_FILES) {
+				vitaOrganizer.VPK_GAME_FILES += files
 			}
-			return out
+			foundFiles += files
+			vitaOrganizer.table.addEntries(batch.map { CachedVpkEntry(it.vpkFile, it.entry, it.record) })
+			batch.clear()
 		}
 
-		val vpkFiles = listVpkFiles(fileVpkFolder)
-
-		for ((index, vpkFile) in vpkFiles.withIndex()) {
-			val ff = VpkFile(vpkFile)
-			val gameId = ff.cacheAndGetGameId()
-			if (gameId != null) {
-				if (gameId.length != 9) {
-					//gameId has to be a length of 9 characters or it will not be installable
-					//either fix gameId automatically or skip
-					println("Skipped ${vpkFile.canonicalPath} because of malformed TITLE_ID: $gameId")
-					VitaOrganizerCache.entry(vpkFile).delete();
+		val results = LinkedBlockingQueue<Pair<File, Future<VpkFile.Scanned?>>>()
+		val inFlight = Semaphore(MAX_IN_FLIGHT)
+		val executor = newDaemonThreadPool("vpk-scan", VitaOrganizerSettings.scanThreads)
+		val walker = ForkJoinPool(VitaOrganizerSettings.scanThreads)
+		try {
+			val walk = VpkDiscovery.walk(fileVpkFolder, MAX_SUBDIRECTORY_LEVELS, walker) { vpkFile ->
+				inFlight.acquire()
+				results += vpkFile to executor.submit(Callable<VpkFile.Scanned?> { scan(vpkFile) })
+			}
 
-					continue;
+			// Consume results in discovery order so progress goes 1..N even if workers finish out of order
+			var index = 0
+			while (true) {
+				// Checked before polling, once the walk is done nothing else can be queued
+				val walkDone = walk.isDone
+				val next = results.poll(BATCH_INTERVAL, TimeUnit.MILLISECONDS)
+				if (next == null) {
+					flushBatch()
+					if (walkDone) break else continue
 				}
-				synchronized(vitaOrganizer.VPK_GAME_FILES) {
-					status(Texts.format("STEP_ANALYZING_ITEM", "name" to vpkFile.name, "current" to index + 1, "total" to vpkFiles.size))
-					vitaOrganizer.VPK_GAME_FILES += vpkFile
+				val (file, result) = next
+				val scanned = try {
+					result.get()
+				} catch (e: ExecutionException) {
+					e.cause?.printStackTrace()
+					null
+				} finally {
+					inFlight.release()
 				}
+				index++
+				status(Texts.format("STEP_ANALYZING_ITEM", "name" to file.name, "current" to index, "total" to if (walk.isDone) index + results.size else "?"))
+				if (scanned != null) batch += scanned
+				if (batch.size >= BATCH_SIZE || System.currentTimeMillis() - lastBatch >= BATCH_INTERVAL) flushBatch()
 			}
-
-			//Thread.sleep(200L)
+			walk.get()
+		} finally {
+			walker.shutdownNow()
+			executor.shutdownNow()
 		}
-		status("Updating entries... Please wait!")
-		vitaOrganizer.updateEntries()
+		flushBatch()
+
+		// Rows of files that were not found this time
+		vitaOrganizer.table.retainEntries(foundFiles)
+		VitaOrganizerCache.flush()
 		status(Texts.format("STEP_DONE"))
 	}
 }
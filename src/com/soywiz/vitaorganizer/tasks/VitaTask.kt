@@ -1,11 +1,28 @@
 package com.soywiz.vitaorganizer.tasks
 
+import com.soywiz.vitaorganizer.TaskPriority
+import com.soywiz.vitaorganizer.TaskScheduler
 import com.soywiz.vitaorganizer.Texts
 import com.soywiz.vitaorganizer.VitaOrganizer
+import com.soywiz.vitaorganizer.VitaOrganizerSettings
+import java.io.File
+import java.io.IOException
 import javax.swing.JOptionPane
 import javax.swing.SwingUtilities
 
 open class VitaTask(val vitaOrganizer: VitaOrganizer) {
+	companion object {
+		// Serial key of the tasks that read or rewrite [file]
+		fun fileKey(file: File): Any = "file:" + try {
+			file.canonicalPath
+		} catch (e: IOException) {
+			file.absolutePath
+		}
+
+		// Serial key of the tasks that change files on the current device
+		val deviceKey: Any get() = "device:${VitaOrganizerSettings.lastDeviceIp}:${VitaOrganizerSettings.lastDevicePort}"
+	}
+
 	class Progress(var current: Long, var total: Long) {
 		fun set(current: Long, total: Long) {
 			this.current = current
@@ -51,12 +68,35 @@ open class VitaTask(val vitaOrganizer: VitaOrganizer) {
 		localProgress.set(current.toLong(), max.toLong())
 	}
 
+	open val priority: TaskPriority get() = TaskPriority.NORMAL
+
+	// Tasks with the same key never run at the same time, even on a queue with several workers
+	open val serialKey: Any? get() = null
+
+	// For tasks that need more than one key, they wait until none of them is in use
+	open val serialKeys: Collection<Any> get() = listOfNotNull(serialKey)
+
+	@Volatile var isCancelled = false; private set
+	internal var handle: TaskScheduler.Handle? = null
+
 	open fun checkBeforeQueue() {
 	}
 
 	open fun perform() {
 	}
 
+	fun run() {
+		if (isCancelled) return
+		perform()
+	}
+
+	/**
+	 * Drops the task if it is still queued. A running task is not interrupted, which would close
+	 * any shared file channel it is using; it has to check [isCancelled] between steps, and tasks
+	 * blocked on something else (like a transfer) override this to abort it as well.
+	 */
 	open fun cancel() {
+		isCancelled = true
+		handle?.cancel()
 	}
-}
\ No newline at end of file
+}
@@ -1,16 +1,14 @@
 package com.soywiz.vitaorganizer.tasks
 
+import com.soywiz.util.ParallelZipDeflater
+import com.soywiz.util.RawZipWriter
 import com.soywiz.vitaorganizer.EbootBin
 import com.soywiz.vitaorganizer.FileRules
-import com.soywiz.vitaorganizer.ext.copyToReport
+import com.soywiz.vitaorganizer.VitaOrganizerSettings
 import com.soywiz.vitaorganizer.ext.listdirRecursively
-import java.io.BufferedOutputStream
-import java.io.File
-import java.io.FileInputStream
-import java.io.FileOutputStream
+import com.soywiz.vitaorganizer.ext.newDaemonThreadPool
+import java.io.*
 import java.util.zip.Deflater
-import java.util.zip.ZipEntry
-import java.util.zip.ZipOutputStream
 
 fun createBigVpk(base: File, outputFile: File, level: Int = Deflater.DEFAULT_COMPRESSION, report: (currentSize: Long, totalSize: Long, currentFile: Int, totalFile: Int, file: String) -> Unit) {
 	data class Entry(val file: File, val path: String)
@@ -33,40 +31,40 @@ fun createBigVpk(base: File, outputFile: File, level: Int = Deflater.DEFAULT_COM
 	doReport()
 
 	// out put file
-	FileOutputStream(outputFile).use { outStream ->
-		BufferedOutputStream(outStream).use { bufferedOutputStream ->
-			ZipOutputStream(bufferedOutputStream).use { out ->
-				out.setLevel(level)
+	val executor = newDaemonThreadPool("deflate", VitaOrganizerSettings.packThreads)
+	try {
+		FileOutputStream(outputFile).use { outStream ->
+			RawZipWriter(BufferedOutputStream(outStream, 0x10000)).use { out ->
+				ParallelZipDeflater(out, executor, level).use { deflater ->
+					// name the file inside the zip  file
+					for ((file, name) in files) {
+						currentFileName = name
+						currentFile++
 
-				// name the file inside the zip  file
-				for ((file, name) in files) {
-					currentFileName = name
-					currentFile++
+						//if (e.name == "eboot.bin") {
+						//	out.write(getResourceBytes("com/soywiz/vitaorganizer/dummy_eboot.bin"))
+						//} else {
 
-					out.putNextEntry(ZipEntry(name))
-					//if (e.name == "eboot.bin") {
-					//	out.write(getResourceBytes("com/soywiz/vitaorganizer/dummy_eboot.bin"))
-					//} else {
-
-					if (FileRules.isEboot(name)) {
-						val data = EbootBin.setSecureInplace(file.readBytes(), secure = true)
-						out.write(data)
-						currentSize += data.size
-						doReport()
-					} else {
-						FileInputStream(file).use { fin ->
-							fin.copyToReport(out, length = file.length()) { current, total, chunk ->
+						val input = if (FileRules.isEboot(name)) {
+							ByteArrayInputStream(EbootBin.setSecureInplace(file.readBytes(), secure = true))
+						} else {
+							FileInputStream(file)
+						}
+						input.use {
+							deflater.addEntry(name, it, RawZipWriter.dosTime(file.lastModified()), file.length()) { chunk ->
 								currentSize += chunk
 								doReport()
 							}
 						}
-					}
 
-					//}
-					out.closeEntry()
+						//}
+					}
+					deflater.flush()
 				}
 			}
 		}
+	} finally {
+		executor.shutdownNow()
 	}
 
 	doReport()
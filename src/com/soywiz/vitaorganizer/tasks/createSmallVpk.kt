@@ -1,32 +1,32 @@
 package com.soywiz.vitaorganizer.tasks
 
+import com.soywiz.util.RawZipReader
+import com.soywiz.util.RawZipWriter
 import com.soywiz.vitaorganizer.FileRules
-import java.io.ByteArrayOutputStream
-import java.util.zip.Deflater
-import java.util.zip.ZipEntry
-import java.util.zip.ZipFile
-import java.util.zip.ZipOutputStream
+import java.io.OutputStream
 
-fun createSmallVpk(zip: ZipFile): ByteArray {
-	// out put file
-	val outBytes = ByteArrayOutputStream()
+fun smallVpkEntries(zip: RawZipReader): List<RawZipReader.Entry> = zip.entries.filter { FileRules.includeInSmallVpk(it.name) }
 
-	ZipOutputStream(outBytes).use { out ->
-		out.setLevel(Deflater.DEFAULT_COMPRESSION)
+/**
+ * Size in bytes of the archive [createSmallVpk] writes for [zip], as long as it does not need zip64.
+ */
+fun smallVpkSize(zip: RawZipReader): Long {
+	// Local header (30) + central record (46) + the name in both, then the end record (22)
+	return smallVpkEntries(zip).map { it.compressedSize + 76 + 2 * it.name.toByteArray(Charsets.UTF_8).size }.sum() + 22
+}
 
-		// name the file inside the zip  file
-		for (e in zip.entries()) {
-			if (FileRules.includeInSmallVpk(e.name)) {
-				out.putNextEntry(ZipEntry(e.name))
-				//if (e.name == "eboot.bin") {
-				//	out.write(getResourceBytes("com/soywiz/vitaorganizer/dummy_eboot.bin"))
-				//} else {
-				out.write(zip.getInputStream(e).readBytes())
-				//}
-				out.closeEntry()
-			}
+/**
+ * Writes the promoting VPK for [zip] to [out] and closes it. Entries are copied still compressed,
+ * so memory use does not depend on the size of the eboot or the livearea assets.
+ */
+fun createSmallVpk(zip: RawZipReader, out: OutputStream) {
+	RawZipWriter(out).use { writer ->
+		for (e in smallVpkEntries(zip)) {
+			//if (e.name == "eboot.bin") {
+			//	out.write(getResourceBytes("com/soywiz/vitaorganizer/dummy_eboot.bin"))
+			//} else {
+			writer.copyRaw(zip, e)
+			//}
 		}
 	}
-
-	return outBytes.toByteArray()
 }
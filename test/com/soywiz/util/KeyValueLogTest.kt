@@ -0,0 +1,136 @@
+package com.soywiz.util
+
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+import java.io.RandomAccessFile
+
+class KeyValueLogTest {
+	private fun tempLog(): File = File.createTempFile("kvlog", ".bin").apply {
+		delete()
+		deleteOnExit()
+	}
+
+	@Test
+	fun testPutGetRemove() {
+		KeyValueLog(tempLog()).use { log ->
+			log["a"] = "hello".toByteArray()
+			log["b"] = byteArrayOf()
+			Assert.assertEquals("hello", String(log["a"]!!))
+			Assert.assertEquals(0, log["b"]!!.size)
+			log["a"] = "world".toByteArray()
+			Assert.assertEquals("world", String(log["a"]!!))
+			log.remove("a")
+			Assert.assertEquals(null, log["a"])
+			Assert.assertEquals(listOf("b"), log.keys)
+		}
+	}
+
+	@Test
+	fun testReopen() {
+		val file = tempLog()
+		KeyValueLog(file).use { log ->
+			log["a"] = "1".toByteArray()
+			log["b"] = "2".toByteArray()
+			log["a"] = "3".toByteArray()
+			log.remove("b")
+		}
+		KeyValueLog(file).use { log ->
+			Assert.assertEquals(listOf("a"), log.keys)
+			Assert.assertEquals("3", String(log["a"]!!))
+		}
+	}
+
+	@Test
+	fun testPutAll() {
+		val file = tempLog()
+		KeyValueLog(file).use { log ->
+			log["a"] = "1".toByteArray()
+			log.putAll(linkedMapOf("a" to "2".toByteArray(), "b" to "3".toByteArray()))
+		}
+		KeyValueLog(file).use { log ->
+			Assert.assertEquals(listOf("a", "b"), log.keys)
+			Assert.assertEquals("2", String(log["a"]!!))
+			Assert.assertEquals("3", String(log["b"]!!))
+		}
+	}
+
+	@Test
+	fun testTornTailIsDiscarded() {
+		val file = tempLog()
+		KeyValueLog(file).use { log ->
+			log["a"] = "first".toByteArray()
+			log["b"] = "second".toByteArray()
+		}
+		val fullSize = file.length()
+		RandomAccessFile(file, "rw").use { it.setLength(fullSize - 2) }
+		KeyValueLog(file).use { log ->
+			Assert.assertEquals(listOf("a"), log.keys)
+			log["c"] = "third".toByteArray()
+		}
+		KeyValueLog(file).use { log ->
+			Assert.assertEquals(listOf("a", "c"), log.keys)
+			Assert.assertEquals("third", String(log["c"]!!))
+		}
+	}
+
+	@Test
+	fun testTornOverwriteKeepsPreviousValue() {
+		val file = tempLog()
+		KeyValueLog(file).use { log ->
+			log["a"] = "first".toByteArray()
+			log["a"] = "again".toByteArray()
+		}
+		// Complete in length but with a value that never fully reached the disk
+		RandomAccessFile(file, "rw").use {
+			it.seek(file.length() - 1)
+			it.write(0)
+		}
+		KeyValueLog(file).use { log ->
+			Assert.assertEquals(listOf("a"), log.keys)
+			Assert.assertEquals("first", String(log["a"]!!))
+		}
+	}
+
+	@Test
+	fun testCorruptHeaderKeepsLaterRecords() {
+		val file = tempLog()
+		KeyValueLog(file).use { log ->
+			log["a"] = "first".toByteArray()
+			log["b"] = "second".toByteArray()
+			log["c"] = "third".toByteArray()
+		}
+		// Breaks the magic of "b", which starts right after the 16 byte header, key and value of "a"
+		RandomAccessFile(file, "rw").use {
+			it.seek(16L + 1 + 5)
+			it.writeInt(0)
+		}
+		KeyValueLog(file).use { log ->
+			Assert.assertEquals(listOf("a", "c"), log.keys)
+			Assert.assertEquals("third", String(log["c"]!!))
+			log["d"] = "fourth".toByteArray()
+		}
+		KeyValueLog(file).use { log ->
+			Assert.assertEquals(listOf("a", "c", "d"), log.keys)
+			Assert.assertEquals("fourth", String(log["d"]!!))
+		}
+	}
+
+	@Test
+	fun testCompact() {
+		val file = tempLog()
+		KeyValueLog(file).use { log ->
+			for (n in 0 until 100) log["key"] = ByteArray(1000) { n.toByte() }
+			log["other"] = "other".toByteArray()
+			val sizeBefore = file.length()
+			log.compact()
+			Assert.assertTrue(file.length() < sizeBefore / 10)
+			Assert.assertEquals(99.toByte(), log["key"]!![0])
+			Assert.assertEquals("other", String(log["other"]!!))
+			log["after"] = "after".toByteArray()
+		}
+		KeyValueLog(file).use { log ->
+			Assert.assertEquals(listOf("key", "other", "after"), log.keys)
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.soywiz.util
+
+import org.junit.Assert
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.Executors
+import java.util.zip.*
+
+class RawZipTest {
+	private fun tempZip(): File = File.createTempFile("rawzip", ".zip").apply { deleteOnExit() }
+
+	private val text = "hello world ".repeat(1000).toByteArray()
+	private val stored = "stored".toByteArray()
+
+	private fun createSource(): File {
+		val file = tempZip()
+		ZipOutputStream(FileOutputStream(file)).use { out ->
+			out.putNextEntry(ZipEntry("sce_sys/param.sfo"))
+			out.write(text)
+			out.closeEntry()
+			out.putNextEntry(ZipEntry("stored.bin").apply {
+				method = ZipEntry.STORED
+				size = stored.size.toLong()
+				crc = CRC32().apply { update(stored) }.value
+			})
+			out.write(stored)
+			out.closeEntry()
+		}
+		return file
+	}
+
+	@Test
+	fun testRead() {
+		RawZipReader(createSource()).use { zip ->
+			Assert.assertEquals(listOf("sce_sys/param.sfo", "stored.bin"), zip.entries.map { it.name })
+			val entry = zip["sce_sys/param.sfo"]!!
+			Assert.assertEquals(ZipEntry.DEFLATED, entry.method)
+			Assert.assertEquals(text.size.toLong(), entry.size)
+			Assert.assertTrue(entry.compressedSize < entry.size)
+			Assert.assertArrayEquals(text, zip.open(entry).use { it.readBytes() })
+			Assert.assertArrayEquals(stored, zip.open(zip["stored.bin"]!!).use { it.readBytes() })
+		}
+	}
+
+	@Test
+	fun testCopyRawAndDeflate() {
+		val target = tempZip()
+		RawZipReader(createSource()).use { zip ->
+			RawZipWriter(FileOutputStream(target)).use { out ->
+				for (entry in zip.entries) out.copyRaw(zip, entry)
+				out.putNextEntry("new/entry.txt").use { it.write(text) }
+			}
+		}
+		ZipFile(target).use { zip ->
+			Assert.assertEquals(listOf("sce_sys/param.sfo", "stored.bin", "new/entry.txt"), zip.entries().toList().map { it.name })
+			Assert.assertArrayEquals(text, zip.getInputStream(zip.getEntry("sce_sys/param.sfo")).readBytes())
+			Assert.assertArrayEquals(stored, zip.getInputStream(zip.getEntry("stored.bin")).readBytes())
+			Assert.assertArrayEquals(text, zip.getInputStream(zip.getEntry("new/entry.txt")).readBytes())
+		}
+		RawZipReader(target).use { zip ->
+			Assert.assertArrayEquals(text, zip.open(zip["new/entry.txt"]!!).use { it.readBytes() })
+		}
+	}
+
+	@Test
+	fun testParallelDeflate() {
+		val target = tempZip()
+		val big = ByteArray(100000) { (it * 31 / 7).toByte() }
+		val executor = Executors.newFixedThreadPool(4)
+		try {
+			RawZipWriter(FileOutputStream(target)).use { out ->
+				ParallelZipDeflater(out, executor, blockSize = 4096, maxBlocksInFlight = 4).use { deflater ->
+					deflater.addEntry("big.bin", ByteArrayInputStream(big))
+					deflater.addEntry("empty.bin", ByteArrayInputStream(byteArrayOf()))
+					deflater.addEntry("exact.bin", ByteArrayInputStream(big, 0, 8192))
+					deflater.addEntry("text.txt", ByteArrayInputStream(text))
+					deflater.flush()
+				}
+			}
+		} finally {
+			executor.shutdown()
+		}
+		ZipFile(target).use { zip ->
+			Assert.assertArrayEquals(big, zip.getInputStream(zip.getEntry("big.bin")).readBytes())
+			Assert.assertArrayEquals(byteArrayOf(), zip.getInputStream(zip.getEntry("empty.bin")).readBytes())
+			Assert.assertArrayEquals(big.copyOf(8192), zip.getInputStream(zip.getEntry("exact.bin")).readBytes())
+			Assert.assertArrayEquals(text, zip.getInputStream(zip.getEntry("text.txt")).readBytes())
+		}
+	}
+
+	@Test
+	fun testZip64LocalHeader() {
+		val target = tempZip()
+		val deflated = ByteArray(text.size + 64).let { buffer ->
+			val deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+			deflater.setInput(text)
+			deflater.finish()
+			buffer.copyOf(deflater.deflate(buffer)).also { deflater.end() }
+		}
+		val crc = CRC32().apply { update(text) }.value.toInt()
+		RawZipWriter(FileOutputStream(target)).use { out ->
+			// Announced as possibly over 4 GB, the sizes are only known at the end
+			out.startCompressedEntry("big.bin", size = 0x100000000L)
+			out.writeCompressed(deflated)
+			out.closeCompressedEntry(crc, text.size.toLong())
+		}
+		val bytes = ByteBuffer.wrap(target.readBytes()).order(ByteOrder.LITTLE_ENDIAN)
+		Assert.assertEquals(45, bytes.getShort(4).toInt())
+		Assert.assertEquals(-1, bytes.getInt(18))
+		Assert.assertEquals(-1, bytes.getInt(22))
+		Assert.assertEquals(20, bytes.getShort(28).toInt())
+		Assert.assertEquals(0x0001, bytes.getShort(30 + "big.bin".length).toInt())
+		// The data descriptor has 8 byte sizes to match
+		val descriptor = 30 + "big.bin".length + 20 + deflated.size
+		Assert.assertEquals(0x08074b50, bytes.getInt(descriptor))
+		Assert.assertEquals(deflated.size.toLong(), bytes.getLong(descriptor + 8))
+		Assert.assertEquals(text.size.toLong(), bytes.getLong(descriptor + 16))
+		ZipFile(target).use { zip ->
+			Assert.assertArrayEquals(text, zip.getInputStream(zip.getEntry("big.bin")).readBytes())
+		}
+
+		// Without a size the header can't announce zip64, so the entry can't grow past 4 GB
+		val out = RawZipWriter(ByteArrayOutputStream())
+		out.startCompressedEntry("unknown.bin")
+		out.writeCompressed(deflated)
+		try {
+			out.closeCompressedEntry(crc, 0x100000000L)
+			Assert.fail()
+		} catch (e: ZipException) {
+		}
+	}
+}
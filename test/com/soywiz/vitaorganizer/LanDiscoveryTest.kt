@@ -0,0 +1,50 @@
+package com.soywiz.vitaorganizer
+
+import org.junit.Assert
+import org.junit.Test
+import java.net.InetAddress
+import java.net.ServerSocket
+
+class LanDiscoveryTest {
+	private fun ip(address: String) = LanDiscovery.addressToInt(InetAddress.getByName(address))
+
+	private fun hosts(address: String, prefixLength: Int) = LanDiscovery.subnetHosts(ip(address), prefixLength).map { LanDiscovery.intToAddress(it).hostAddress }
+
+	@Test
+	fun testSubnetHosts() {
+		val slash24 = hosts("192.168.1.37", 24)
+		Assert.assertEquals(253, slash24.size)
+		Assert.assertFalse("192.168.1.37" in slash24)
+		Assert.assertEquals("192.168.1.1", slash24.first())
+		Assert.assertEquals("192.168.1.254", slash24.last())
+
+		val slash23 = hosts("10.0.3.5", 23)
+		Assert.assertEquals(509, slash23.size)
+		Assert.assertEquals("10.0.2.1", slash23.first())
+		Assert.assertEquals("10.0.3.254", slash23.last())
+
+		Assert.assertEquals(listOf("172.16.0.1"), hosts("172.16.0.2", 30))
+		Assert.assertEquals(listOf("172.16.0.8"), hosts("172.16.0.9", 31))
+		Assert.assertEquals(listOf("172.16.0.9"), hosts("172.16.0.8", 31))
+		Assert.assertEquals(listOf<String>(), hosts("172.16.0.9", 32))
+	}
+
+	@Test
+	fun testBigNetworksAreNarrowed() {
+		val hosts = hosts("10.20.30.40", 8)
+		Assert.assertEquals((1 shl (32 - LanDiscovery.MIN_PREFIX_LENGTH)) - 3, hosts.size)
+		Assert.assertEquals("10.20.16.1", hosts.first())
+		Assert.assertEquals("10.20.31.254", hosts.last())
+	}
+
+	@Test
+	fun testFoundHostsAreReported() {
+		ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")).use { server ->
+			val reported = arrayListOf<String>()
+			// Scanning from .2 of 127.0.0.0/30 only tries .1, where the server listens
+			val found = LanDiscovery.discover(server.localPort, listOf(LanDiscovery.Subnet(ip("127.0.0.2"), 30)), timeout = 500) { reported += it }
+			Assert.assertEquals(listOf("127.0.0.1"), reported)
+			Assert.assertEquals(reported, found)
+		}
+	}
+}
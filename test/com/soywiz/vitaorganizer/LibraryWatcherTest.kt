@@ -0,0 +1,67 @@
+package com.soywiz.vitaorganizer
+
+import com.soywiz.vitaorganizer.tasks.RefreshVpkFilesTask
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.*
+
+class LibraryWatcherTest {
+	private fun tempFolder(): File = Files.createTempDirectory("library").toFile().apply { deleteOnExit() }
+
+	// Waits until [events] holds something, up to a few seconds
+	private fun awaitEvents(events: MutableList<Set<File>>): List<Set<File>> {
+		val deadline = System.currentTimeMillis() + 5000L
+		while (System.currentTimeMillis() < deadline) {
+			synchronized(events) {
+				if (events.isNotEmpty()) return events.toList().also { events.clear() }
+			}
+			Thread.sleep(20L)
+		}
+		return listOf()
+	}
+
+	@Test
+	fun testPollingReportsCopiedFilesOnce() {
+		val root = tempFolder()
+		val events = Collections.synchronizedList(arrayListOf<Set<File>>())
+		LibraryWatcher(root, 1, onChanged = { events += it }, onOverflow = { }, pollInterval = 100L, alwaysPoll = true).use { watcher ->
+			watcher.start()
+			Thread.sleep(150L)
+
+			// A copy in progress keeps changing faster than the quiet period
+			val game = File(root, "game.vpk")
+			for (n in 0 until 8) {
+				game.appendBytes(ByteArray(1024))
+				Thread.sleep(50L)
+			}
+			val copied = awaitEvents(events)
+			Assert.assertEquals(listOf(setOf(game)), copied)
+
+			File(root, "notes.txt").writeText("ignored")
+			val sub = File(root, "sub").apply { mkdirs() }
+			val nested = File(sub, "nested.vpk").apply { writeBytes(ByteArray(16)) }
+			Assert.assertEquals(listOf(setOf(nested)), awaitEvents(events))
+
+			game.delete()
+			nested.delete()
+			sub.delete()
+			Assert.assertEquals(listOf(setOf(game, nested)), awaitEvents(events))
+		}
+	}
+
+	@Test
+	fun testRemovedFiles() {
+		val root = tempFolder()
+		val kept = File(root, "kept.vpk").apply { writeBytes(ByteArray(16)) }
+		val deleted = File(root, "deleted.vpk")
+		val folder = File(root, "folder")
+		val inFolder = File(folder, "a.vpk")
+		val known = listOf(kept, deleted, inFolder, File(root, "folder2/b.vpk"))
+
+		Assert.assertEquals(listOf(deleted), RefreshVpkFilesTask.removedFiles(listOf(deleted, kept), known))
+		// Deleting a folder drops what was below it, but not a folder sharing its name prefix
+		Assert.assertEquals(listOf(inFolder), RefreshVpkFilesTask.removedFiles(listOf(folder), known))
+	}
+}
@@ -0,0 +1,89 @@
+package com.soywiz.vitaorganizer
+
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class TaskSchedulerTest {
+	// Keeps the only worker of [scheduler] busy until the returned latch is released
+	private fun block(scheduler: TaskScheduler): CountDownLatch {
+		val started = CountDownLatch(1)
+		val release = CountDownLatch(1)
+		scheduler.submit { started.countDown(); release.await() }
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS))
+		return release
+	}
+
+	@Test
+	fun testPriorityOrder() {
+		val scheduler = TaskScheduler("test", 1)
+		val release = block(scheduler)
+		val order = Collections.synchronizedList(arrayListOf<String>())
+		scheduler.submit(TaskPriority.BULK) { order += "bulk" }
+		scheduler.submit(TaskPriority.NORMAL) { order += "normal1" }
+		scheduler.submit(TaskPriority.INTERACTIVE) { order += "interactive" }
+		scheduler.submit(TaskPriority.NORMAL) { order += "normal2" }
+		release.countDown()
+		scheduler.waitCompleted()
+		Assert.assertEquals(listOf("interactive", "normal1", "normal2", "bulk"), order)
+	}
+
+	@Test
+	fun testSerialKey() {
+		val scheduler = TaskScheduler("test", 4)
+		val running = AtomicInteger()
+		val maxRunning = AtomicInteger()
+		val order = Collections.synchronizedList(arrayListOf<Int>())
+		for (n in 0 until 8) {
+			scheduler.submit(serialKey = "key") {
+				val now = running.incrementAndGet()
+				synchronized(maxRunning) { if (now > maxRunning.get()) maxRunning.set(now) }
+				Thread.sleep(10)
+				order += n
+				running.decrementAndGet()
+			}
+		}
+		scheduler.waitCompleted()
+		Assert.assertEquals(1, maxRunning.get())
+		Assert.assertEquals((0 until 8).toList(), order)
+	}
+
+	@Test
+	fun testSeveralSerialKeys() {
+		val scheduler = TaskScheduler("test", 3)
+		val release = CountDownLatch(1)
+		val started = Collections.synchronizedList(arrayListOf<String>())
+		scheduler.submit(serialKeys = listOf("file", "device")) { started += "send"; release.await() }
+		scheduler.submit(serialKey = "file") { started += "repack" }
+		scheduler.submit(serialKey = "other") { started += "other" }
+		val deadline = System.currentTimeMillis() + 5000L
+		while (started.size < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10L)
+		Thread.sleep(50L)
+		// The repack shares the file with the running send and has to wait for it
+		Assert.assertEquals(setOf("send", "other"), started.toSet())
+		release.countDown()
+		scheduler.waitCompleted()
+		Assert.assertEquals(listOf("repack"), started.drop(2))
+	}
+
+	@Test
+	fun testCancel() {
+		val scheduler = TaskScheduler("test", 1)
+		val release = block(scheduler)
+		var ran = false
+		val handle = scheduler.submit { ran = true }
+		Assert.assertTrue(handle.cancel())
+		release.countDown()
+		scheduler.waitCompleted()
+		Assert.assertFalse(ran)
+		Assert.assertFalse(handle.cancel())
+
+		val done = scheduler.submit { ran = true }
+		scheduler.waitCompleted()
+		Assert.assertTrue(ran)
+		Assert.assertFalse(done.cancel())
+	}
+}
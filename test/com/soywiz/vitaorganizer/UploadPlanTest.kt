@@ -0,0 +1,96 @@
+package com.soywiz.vitaorganizer
+
+import it.sauronsoftware.ftp4j.FTPClient
+import it.sauronsoftware.ftp4j.FTPDataTransferListener
+import org.junit.Assert
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+
+class UploadPlanTest {
+	@Test
+	fun testDirectories() {
+		Assert.assertEquals(
+			listOf("/ux0:/app/PCSE00000", "/ux0:/app/PCSE00000/sce_sys", "/ux0:/app/PCSE00000/sce_sys/livearea", "/ux0:/app/PCSE00000/sce_sys/livearea/contents", "/ux0:/app/PCSE00000/data"),
+			UploadPlan.directories("/ux0:/app/PCSE00000/", listOf(
+				"eboot.bin",
+				"sce_sys/param.sfo",
+				"sce_sys/livearea/contents/bg.png",
+				"sce_sys\\livearea\\contents\\template.xml",
+				"sce_sys/icon0.png",
+				"data/"
+			))
+		)
+	}
+
+	@Test
+	fun testNoEntries() {
+		Assert.assertEquals(listOf("/ux0:/app/PCSE00000"), UploadPlan.directories("/ux0:/app/PCSE00000", listOf()))
+	}
+
+	@Test
+	fun testResumeOffset() {
+		val source = "1234:100"
+		val partial = UploadJournal.Record(source, false)
+		val completed = UploadJournal.Record(source, true)
+		// Missing on the device
+		Assert.assertEquals(0L, UploadPlan.resumeOffset(100L, null, partial, source, false))
+		// Partial upload of the same entry continues, a finished one is skipped
+		Assert.assertEquals(40L, UploadPlan.resumeOffset(100L, 40L, partial, source, false))
+		Assert.assertEquals(null, UploadPlan.resumeOffset(100L, 100L, partial, source, false))
+		Assert.assertEquals(null, UploadPlan.resumeOffset(100L, 100L, completed, source, false))
+		// A completed file that shrank, a different entry or a remote file that is too big start over
+		Assert.assertEquals(0L, UploadPlan.resumeOffset(100L, 40L, completed, source, false))
+		Assert.assertEquals(0L, UploadPlan.resumeOffset(100L, 40L, UploadJournal.Record("999:100", false), source, false))
+		Assert.assertEquals(0L, UploadPlan.resumeOffset(100L, 120L, partial, source, false))
+		// Without a record only a whole file is trusted, and only when skipping unchanged files
+		Assert.assertEquals(0L, UploadPlan.resumeOffset(100L, 40L, null, source, true))
+		Assert.assertEquals(0L, UploadPlan.resumeOffset(100L, 100L, null, source, false))
+		Assert.assertEquals(null, UploadPlan.resumeOffset(100L, 100L, null, source, true, 1000000L, 2000000L))
+		// A same size entry newer than the remote file, or times that are not known, are sent again
+		Assert.assertEquals(0L, UploadPlan.resumeOffset(100L, 100L, null, source, true, 2000000L, 1000000L))
+		Assert.assertEquals(0L, UploadPlan.resumeOffset(100L, 100L, null, source, true, 1000000L, 0L))
+	}
+
+	// Records what would be sent instead of talking to a server
+	private class FakeFtpClient(val resumeSupported: Boolean) : FTPClient() {
+		var command = ""
+		var restartAt = -1L
+		var sent = byteArrayOf()
+
+		override fun isResumeSupported(): Boolean = resumeSupported
+
+		override fun upload(fileName: String, inputStream: InputStream, restartAt: Long, streamOffset: Long, listener: FTPDataTransferListener?) {
+			command = "STOR"
+			this.restartAt = restartAt
+			sent = inputStream.readBytes()
+		}
+
+		override fun append(fileName: String, inputStream: InputStream, streamOffset: Long, listener: FTPDataTransferListener?) {
+			command = "APPE"
+			sent = inputStream.readBytes()
+		}
+	}
+
+	@Test
+	fun testResumeTransfer() {
+		val data = ByteArray(100) { it.toByte() }
+
+		val fresh = FakeFtpClient(true)
+		PsvitaDevice.uploadFrom(fresh, "/ux0:/file", ByteArrayInputStream(data), 0L, null)
+		Assert.assertEquals("STOR", fresh.command)
+		Assert.assertEquals(0L, fresh.restartAt)
+		Assert.assertArrayEquals(data, fresh.sent)
+
+		val rest = FakeFtpClient(true)
+		PsvitaDevice.uploadFrom(rest, "/ux0:/file", ByteArrayInputStream(data), 40L, null)
+		Assert.assertEquals("STOR", rest.command)
+		Assert.assertEquals(40L, rest.restartAt)
+		Assert.assertArrayEquals(data.copyOfRange(40, 100), rest.sent)
+
+		val appe = FakeFtpClient(false)
+		PsvitaDevice.uploadFrom(appe, "/ux0:/file", ByteArrayInputStream(data), 40L, null)
+		Assert.assertEquals("APPE", appe.command)
+		Assert.assertArrayEquals(data.copyOfRange(40, 100), appe.sent)
+	}
+}
@@ -0,0 +1,59 @@
+package com.soywiz.vitaorganizer
+
+import com.soywiz.vitaorganizer.ext.getResourceBytes
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Test
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.file.Files
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+class VitaOrganizerCacheTest {
+	companion object {
+		// The build already points the config at a folder of its own, this covers running the test alone.
+		// The folder stays the config of the whole JVM, so it is deleted when the JVM exits
+		@BeforeClass @JvmStatic
+		fun useTempConfig() {
+			if (System.getProperty("vitaorganizer.config") == null) {
+				val configRoot = Files.createTempDirectory("vitaorganizer-config").toFile()
+				System.setProperty("vitaorganizer.config", configRoot.absolutePath)
+				Runtime.getRuntime().addShutdownHook(Thread { configRoot.deleteRecursively() })
+			}
+		}
+	}
+
+	private fun writeVpk(file: File, extraData: Int) {
+		ZipOutputStream(FileOutputStream(file)).use { zip ->
+			zip.putNextEntry(ZipEntry("sce_sys/param.sfo"))
+			zip.write(getResourceBytes("vitashell.param.sfo"))
+			zip.putNextEntry(ZipEntry("data.bin"))
+			zip.write(ByteArray(extraData))
+		}
+	}
+
+	@Test
+	fun testRescanAfterRewrite() {
+		Assert.assertTrue(VitaOrganizerCache.cacheFolder.startsWith(File(System.getProperty("vitaorganizer.config")).canonicalFile))
+		val file = File.createTempFile("cachetest", ".vpk")
+		try {
+			writeVpk(file, 100)
+			file.setLastModified(1000000000L)
+			Assert.assertEquals("VITASHELL", VpkFile(file).cacheAndGetGameId())
+			val before = VitaOrganizerCache.entry(file).record!!
+			Assert.assertNotNull(VitaOrganizerCache.scanned(file))
+
+			writeVpk(file, 5000)
+			file.setLastModified(1000002000L)
+			Assert.assertNull(VitaOrganizerCache.scanned(file))
+			Assert.assertEquals("VITASHELL", VpkFile(file).cacheAndGetGameId())
+			val after = VitaOrganizerCache.entry(file).record!!
+			Assert.assertNotEquals(before.size, after.size)
+			Assert.assertEquals(after.size, CachedVpkEntry(file).size)
+		} finally {
+			VitaOrganizerCache.entry(file).delete()
+			file.delete()
+		}
+	}
+}